@@ -0,0 +1,104 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates the data sets shared by the benchmarks.  Data is generated from
+ * a fixed seed so that runs are reproducible.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class BenchmarkData {
+
+    /**
+     * Build a <code>UMROEnvelope</code> call containing the given number of string parameters.
+     *
+     * @param parameterCount Number of <code>String</code> elements in the call.
+     * @return Envelope text.
+     */
+    static String envelope(int parameterCount) {
+        StringBuilder text = new StringBuilder();
+        text.append("<UMROEnvelope JarInfo='1_0_0' Time='2009 12 01 10:34:11.955'>\n");
+        text.append("  <Call>\n");
+        text.append("    <CDAConnect JarInfo='CDAConnect 1.0.0'>\n");
+        text.append("      <connect>\n");
+        for (int p = 0; p < parameterCount; p++) {
+            text.append("        <String Name='param").append(p).append("'>value ").append(p).append("</String>\n");
+        }
+        text.append("        <String Name='caseID'>200900005</String>\n");
+        text.append("      </connect>\n");
+        text.append("    </CDAConnect>\n");
+        text.append("  </Call>\n");
+        text.append("</UMROEnvelope>\n");
+        return text.toString();
+    }
+
+    /**
+     * Create a file of pseudo-random printable text.
+     *
+     * @param file Created file.
+     * @param size Number of bytes in file.
+     */
+    static void writeTextFile(File file, int size) throws IOException {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int b = 0; b < size; b++) {
+            data[b] = (byte) (((b % 80) == 79) ? '\n' : (' ' + random.nextInt(95)));
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Create a directory tree of text files.
+     *
+     * @param dir        Top of tree, created if necessary.
+     * @param depth      Number of directory levels below the top.
+     * @param fanOut     Number of subdirectories and files in each directory.
+     * @param fileSize   Size of each file in bytes.
+     */
+    static void writeTree(File dir, int depth, int fanOut, int fileSize) throws IOException {
+        dir.mkdirs();
+        for (int f = 0; f < fanOut; f++) {
+            writeTextFile(new File(dir, "file" + f + ".txt"), fileSize);
+            if (depth > 0) {
+                writeTree(new File(dir, "dir" + f), depth - 1, fanOut, fileSize);
+            }
+        }
+    }
+
+    /**
+     * Create an empty temporary directory.
+     *
+     * @param prefix Prefix of directory name.
+     * @return New directory.
+     */
+    static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+}
@@ -0,0 +1,45 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks for incrementing strings with <code>General.increment</code>.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneralBenchmark {
+
+    @Benchmark
+    public String incrementSimple() {
+        return General.increment("aab");
+    }
+
+    @Benchmark
+    public String incrementCarry() {
+        return General.increment("r9Zz9Z");
+    }
+
+}
@@ -0,0 +1,99 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.*;
+
+/**
+ * Benchmarks for formatting log records and for logging through
+ * <code>Log.get()</code> to a <code>LogFileHandler</code> writing to a
+ * temporary directory.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+@SuppressWarnings("deprecation")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+
+    private File logDir;
+    private LogFormatter formatter;
+    private LogRecord record;
+    private Logger logger;
+
+    @Setup
+    public void setup() throws IOException {
+        logDir = BenchmarkData.tempDir("logbench");
+        File properties = new File(logDir, "logging.properties");
+        PrintWriter out = new PrintWriter(new FileWriter(properties));
+        try {
+            out.println("handlers = edu.umro.util.LogFileHandler");
+            out.println(".level = INFO");
+            out.println("edu.umro.util.LogFileHandler.pattern = " + new File(logDir, "bench%g.log").getAbsolutePath().replace('\\', '/'));
+            out.println("edu.umro.util.LogFileHandler.limit = 10000000");
+            out.println("edu.umro.util.LogFileHandler.count = 2");
+            out.println("edu.umro.util.LogFileHandler.level = INFO");
+        } finally {
+            out.close();
+        }
+        System.setProperty("java.util.logging.config.file", properties.getAbsolutePath());
+        LogManager.getLogManager().readConfiguration();
+
+        formatter = new LogFormatter();
+        record = new LogRecord(Level.INFO, "Processed request for case 200900005 in 12 ms");
+        record.setSourceClassName(LogBenchmark.class.getName());
+        record.setSourceMethodName("format");
+        logger = Log.get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        LogManager.getLogManager().reset();
+        Utility.deleteFileTree(logDir);
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(record);
+    }
+
+    @Benchmark
+    public void logInfo() {
+        logger.info("Processed request for case 200900005 in 12 ms");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logInfo4Threads() {
+        logger.info("Processed request for case 200900005 in 12 ms");
+    }
+
+    @Benchmark
+    public void logDisabled() {
+        logger.fine("Processed request for case 200900005 in 12 ms");
+    }
+
+}
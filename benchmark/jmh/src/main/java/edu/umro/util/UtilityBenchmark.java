@@ -0,0 +1,91 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks for reading, comparing and copying files with <code>Utility</code>.
+ * The data sets are generated in a temporary directory before the run and
+ * deleted afterwards.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilityBenchmark {
+
+    /**
+     * Size in bytes of each generated file.
+     */
+    @Param({"4096", "1048576"})
+    public int fileSize;
+
+    private File dir;
+    private File fileA;
+    private File fileB;
+    private File tree;
+    private File copy;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchmarkData.tempDir("utilbench");
+        fileA = new File(dir, "a.txt");
+        fileB = new File(dir, "b.txt");
+        BenchmarkData.writeTextFile(fileA, fileSize);
+        BenchmarkData.writeTextFile(fileB, fileSize);
+        tree = new File(dir, "tree");
+        BenchmarkData.writeTree(tree, 2, 4, fileSize / 16);
+        copy = new File(dir, "copy");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Utility.deleteFileTree(dir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopy() {
+        if (copy.exists()) {
+            Utility.deleteFileTree(copy);
+        }
+    }
+
+    @Benchmark
+    public String readFile() throws UMROException {
+        return Utility.readFile(fileA);
+    }
+
+    @Benchmark
+    public boolean compareFiles() throws IOException {
+        return Utility.compareFiles(fileA, fileB);
+    }
+
+    @Benchmark
+    public File copyFileTree() throws IOException, UMROException {
+        Utility.copyFileTree(tree, copy);
+        return copy;
+    }
+
+}
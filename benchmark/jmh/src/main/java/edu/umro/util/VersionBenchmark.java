@@ -0,0 +1,55 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks for parsing and comparing versions.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VersionBenchmark {
+
+    private Version older;
+    private Version newer;
+
+    @Setup
+    public void setup() throws UMROException {
+        older = new Version("1.3.19");
+        newer = new Version("1.3.20");
+    }
+
+    @Benchmark
+    public Version parse() throws UMROException {
+        return new Version("1.3.20");
+    }
+
+    @Benchmark
+    public int compare() {
+        return older.compareTo(newer);
+    }
+
+}
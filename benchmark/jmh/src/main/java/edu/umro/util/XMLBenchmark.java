@@ -0,0 +1,106 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Benchmarks for parsing, querying and writing XML with <code>XML</code>.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLBenchmark {
+
+    /**
+     * Number of parameters in the envelope, which controls its size.
+     */
+    @Param({"10", "1000"})
+    public int parameterCount;
+
+    private String envelopeText;
+    private Document document;
+    private Element root;
+    private String plainText;
+    private String specialText;
+
+    @Setup
+    public void setup() throws UMROException {
+        envelopeText = BenchmarkData.envelope(parameterCount);
+        document = XML.parseToDocument(envelopeText);
+        root = document.getDocumentElement();
+        plainText = "Unable to connect to the clinical directory service on port 4000 of the database host";
+        specialText = "if (a < b && c > d) then say \"it's <ok>\" & stop";
+    }
+
+    @Benchmark
+    public Document parseToDocument() throws UMROException {
+        return XML.parseToDocument(envelopeText);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Document parseToDocument4Threads() throws UMROException {
+        return XML.parseToDocument(envelopeText);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Document parseToDocument16Threads() throws UMROException {
+        return XML.parseToDocument(envelopeText);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Document parseToDocument64Threads() throws UMROException {
+        return XML.parseToDocument(envelopeText);
+    }
+
+    @Benchmark
+    public String getValueSimplePath() throws UMROException {
+        return XML.getValue(root, "Call/CDAConnect/connect/String[@Name='caseID']/text()");
+    }
+
+    @Benchmark
+    public String getValueXPath() throws UMROException {
+        return XML.getValue(root, "Call//String[last()]/text()");
+    }
+
+    @Benchmark
+    public String domToString() throws UMROException {
+        return XML.domToString(document);
+    }
+
+    @Benchmark
+    public String escapeSpecialCharsPlain() {
+        return XML.escapeSpecialChars(plainText);
+    }
+
+    @Benchmark
+    public String escapeSpecialCharsSpecial() {
+        return XML.escapeSpecialChars(specialText);
+    }
+
+}
@@ -0,0 +1,289 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Read the files written by <code>BinaryLogHandler</code>.  Records can be
+ * read one at a time as <code>LogRecord</code>s, or the decoder can be run
+ * from the command line to print files in the same layout as
+ * <code>LogFormatter</code>:
+ * <pre>
+ *     java -cp util.jar edu.umro.util.BinaryLogDecoder service.binlog.1 service.binlog
+ * </pre>
+ * Standard input is read if no files are given.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class BinaryLogDecoder implements Closeable {
+
+    /**
+     * Stands in for the throwable of a decoded record, whose description and
+     * stack trace were recorded as text.  The text is returned by
+     * <code>toString</code> so that <code>LogFormatter</code> reproduces it.
+     */
+    private static class RecordedThrowable extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        private final String stackTrace;
+
+        RecordedThrowable(String stackTrace) {
+            super(null, null, false, false);
+            this.stackTrace = stackTrace;
+        }
+
+        @Override
+        public String toString() {
+            return stackTrace;
+        }
+
+        @Override
+        public void printStackTrace(PrintStream printStream) {
+            printStream.println(stackTrace);
+        }
+
+        @Override
+        public void printStackTrace(PrintWriter printWriter) {
+            printWriter.println(stackTrace);
+        }
+    }
+
+    private final InputStream inputStream;
+    private final BinaryLogFormat.Input input;
+
+    /**
+     * Templates defined so far in the current file, indexed by id.
+     */
+    private final ArrayList<String> templateList = new ArrayList<String>();
+
+    /**
+     * Source class and method names defined so far in the current file, indexed by id.
+     */
+    private final ArrayList<String[]> sourceList = new ArrayList<String[]>();
+
+    private long previousNanos = 0;
+    private long previousSequence = 0;
+
+    /**
+     * Construct a decoder.
+     *
+     * @param inputStream Contents of a file written by <code>BinaryLogHandler</code>.
+     */
+    public BinaryLogDecoder(InputStream inputStream) {
+        this.inputStream = inputStream;
+        input = new BinaryLogFormat.Input(new BufferedInputStream(inputStream, 64 * 1024));
+    }
+
+    /**
+     * Start a new file, forgetting the definitions of the previous one.
+     */
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+            throw new IOException("Not a binary log file");
+        }
+        long version = input.readUnsigned();
+        if (version != BinaryLogFormat.VERSION) {
+            throw new IOException("Unsupported binary log version " + version);
+        }
+        templateList.clear();
+        templateList.add(null);
+        sourceList.clear();
+        sourceList.add(null);
+        previousNanos = 0;
+        previousSequence = 0;
+    }
+
+    /**
+     * Add a definition, checking that it has the next id.
+     */
+    private static <T> void define(ArrayList<T> list, long id, T value) throws IOException {
+        if (id != list.size()) {
+            throw new IOException("Binary log definition " + id + " is out of order");
+        }
+        list.add(value);
+    }
+
+    /**
+     * Look up a definition.
+     */
+    private static <T> T lookUp(ArrayList<T> list, long id) throws IOException {
+        if ((id <= 0) || (id >= list.size())) {
+            throw new IOException("Binary log refers to undefined entry " + id);
+        }
+        return list.get((int) id);
+    }
+
+    private Object readParameter() throws IOException {
+        int type = input.readByte();
+        switch (type) {
+            case BinaryLogFormat.PARAMETER_NULL:
+                return null;
+            case BinaryLogFormat.PARAMETER_STRING:
+                return input.readString();
+            case BinaryLogFormat.PARAMETER_INT:
+                return (int) input.readSigned();
+            case BinaryLogFormat.PARAMETER_LONG:
+                return input.readSigned();
+            case BinaryLogFormat.PARAMETER_FLOAT:
+                return Float.intBitsToFloat((int) input.readUnsigned());
+            case BinaryLogFormat.PARAMETER_DOUBLE:
+                return Double.longBitsToDouble(input.readFixed());
+            case BinaryLogFormat.PARAMETER_FALSE:
+                return Boolean.FALSE;
+            case BinaryLogFormat.PARAMETER_TRUE:
+                return Boolean.TRUE;
+        }
+        throw new IOException("Unknown binary log parameter type " + type);
+    }
+
+    /**
+     * Read the body of a record.
+     */
+    private LogRecord readRecord() throws IOException {
+        Level level = Level.parse(Long.toString(input.readSigned()));
+        long nanos = previousNanos + input.readSigned();
+        long sequence = previousSequence + input.readSigned();
+        int threadId = (int) input.readUnsigned();
+
+        long templateId = input.readUnsigned();
+        String message = (templateId == 0) ? input.readString() : lookUp(templateList, templateId);
+
+        long sourceId = input.readUnsigned();
+        String[] source;
+        if (sourceId == 0) {
+            source = new String[]{input.readString(), input.readString()};
+        } else {
+            source = lookUp(sourceList, sourceId);
+        }
+
+        int parameterCount = (int) input.readUnsigned();
+        Object[] parameterList = (parameterCount == 0) ? null : new Object[parameterCount];
+        for (int p = 0; p < parameterCount; p++) {
+            parameterList[p] = readParameter();
+        }
+        String stackTrace = input.readString();
+
+        LogRecord record = new LogRecord(level, message);
+        BinaryLogFormat.setNanos(record, nanos);
+        record.setSequenceNumber(sequence);
+        record.setThreadID(threadId);
+        record.setSourceClassName(source[0]);
+        record.setSourceMethodName(source[1]);
+        record.setParameters(parameterList);
+        if (stackTrace != null) {
+            record.setThrown(new RecordedThrowable(stackTrace));
+        }
+        previousNanos = nanos;
+        previousSequence = sequence;
+        return record;
+    }
+
+    /**
+     * Read the next record.  Files that were concatenated are read one after the other.
+     *
+     * @return Next record, or null at the end of the input.
+     * @throws IOException If the input could not be read or is not a binary log.
+     */
+    public LogRecord read() throws IOException {
+        while (true) {
+            int tag = input.readTag();
+            if ((tag != BinaryLogFormat.HEADER) && templateList.isEmpty() && (tag != -1)) {
+                throw new IOException("Not a binary log file");
+            }
+            switch (tag) {
+                case -1:
+                    return null;
+                case BinaryLogFormat.HEADER:
+                    readHeader();
+                    break;
+                case BinaryLogFormat.TEMPLATE:
+                    define(templateList, input.readUnsigned(), input.readString());
+                    break;
+                case BinaryLogFormat.SOURCE: {
+                    long id = input.readUnsigned();
+                    define(sourceList, id, new String[]{input.readString(), input.readString()});
+                    break;
+                }
+                case BinaryLogFormat.RECORD:
+                    return readRecord();
+                default:
+                    throw new IOException("Unknown binary log entry " + tag);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    /**
+     * Print all of the records read by a decoder.
+     *
+     * @param decoder Source of records.
+     * @param out     Destination.
+     * @throws IOException If the input could not be read.
+     */
+    private static void print(BinaryLogDecoder decoder, Writer out) throws IOException {
+        LogFormatter formatter = new LogFormatter();
+        StringBuilder text = new StringBuilder();
+        LogRecord record;
+        while ((record = decoder.read()) != null) {
+            text.setLength(0);
+            formatter.format(record, text);
+            out.append(text);
+        }
+    }
+
+    /**
+     * Print binary log files as text.
+     *
+     * @param args Names of files, printed in the order given.  If none, standard input is read.
+     */
+    public static void main(String[] args) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            if (args.length == 0) {
+                print(new BinaryLogDecoder(System.in), out);
+            } else {
+                for (String fileName : args) {
+                    BinaryLogDecoder decoder = new BinaryLogDecoder(new FileInputStream(fileName));
+                    try {
+                        print(decoder, out);
+                    } finally {
+                        decoder.close();
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException ex) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                ;
+            }
+            System.err.println("Unable to decode binary log: " + ex);
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.logging.*;
+
+/**
+ * Layout of the files written by <code>BinaryLogHandler</code> and read by
+ * <code>BinaryLogDecoder</code>.
+ * <p>
+ * A file is a series of entries, each starting with a tag byte.  Integers are
+ * written as variable length quantities, 7 bits per byte with the high bit
+ * set on all but the last byte, and signed values are zigzag encoded first
+ * so that small negative numbers are also short.  Strings are the length of
+ * their UTF-8 encoding plus one, followed by the bytes, with a length of 0
+ * meaning null.
+ * <pre>
+ *     HEADER   magic version              resets the template and source tables
+ *     TEMPLATE id message                 defines a message template
+ *     SOURCE   id class method            defines a source class and method
+ *     RECORD   level timeDelta sequenceDelta thread template source
+ *              parameterCount parameter... thrown
+ * </pre>
+ * The time of a record is in nanoseconds since the epoch, and it and the
+ * sequence number are written as the difference from the previous record.
+ * Records only have nanoseconds on Java 9 and later, where
+ * <code>LogRecord.getInstant</code> is used; before that the time is the
+ * record's milliseconds multiplied out to nanoseconds.
+ * A template or source id of 0 means the value is written in place rather than
+ * referring to a definition.  Each parameter is a type byte followed by its
+ * value, and the thrown text is a string.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class BinaryLogFormat {
+
+    /**
+     * First bytes of a header.
+     */
+    static final byte[] MAGIC = {'U', 'M', 'R', 'O', 'L', 'O', 'G'};
+
+    static final int VERSION = 1;
+
+    static final int HEADER = 1;
+    static final int TEMPLATE = 2;
+    static final int SOURCE = 3;
+    static final int RECORD = 4;
+
+    static final int PARAMETER_NULL = 0;
+    static final int PARAMETER_STRING = 1;
+    static final int PARAMETER_INT = 2;
+    static final int PARAMETER_LONG = 3;
+    static final int PARAMETER_FLOAT = 4;
+    static final int PARAMETER_DOUBLE = 5;
+    static final int PARAMETER_FALSE = 6;
+    static final int PARAMETER_TRUE = 7;
+
+    static final long NANOS_PER_MILLI = 1000L * 1000;
+
+    static final long NANOS_PER_SECOND = 1000L * NANOS_PER_MILLI;
+
+    /**
+     * <code>LogRecord.getInstant</code>, <code>LogRecord.setInstant</code>,
+     * <code>Instant.getEpochSecond</code>, <code>Instant.getNano</code> and
+     * <code>Instant.ofEpochSecond</code>, which are looked up by reflection
+     * because they do not exist before Java 9.  Null if they do not exist.
+     */
+    private static final Method GET_INSTANT;
+    private static final Method SET_INSTANT;
+    private static final Method GET_EPOCH_SECOND;
+    private static final Method GET_NANO;
+    private static final Method OF_EPOCH_SECOND;
+
+    static {
+        Method[] methodList = null;
+        try {
+            Class<?> instant = Class.forName("java.time.Instant");
+            methodList = new Method[]{
+                    LogRecord.class.getMethod("getInstant"),
+                    LogRecord.class.getMethod("setInstant", instant),
+                    instant.getMethod("getEpochSecond"),
+                    instant.getMethod("getNano"),
+                    instant.getMethod("ofEpochSecond", long.class, long.class)};
+        } catch (Exception ex) {
+            // before Java 9 records only have milliseconds
+            methodList = new Method[5];
+        }
+        GET_INSTANT = methodList[0];
+        SET_INSTANT = methodList[1];
+        GET_EPOCH_SECOND = methodList[2];
+        GET_NANO = methodList[3];
+        OF_EPOCH_SECOND = methodList[4];
+    }
+
+    /**
+     * Get the time of a record in nanoseconds since the epoch.
+     */
+    static long getNanos(LogRecord record) {
+        if (GET_INSTANT != null) {
+            try {
+                Object instant = GET_INSTANT.invoke(record);
+                return ((Long) GET_EPOCH_SECOND.invoke(instant)) * NANOS_PER_SECOND + ((Integer) GET_NANO.invoke(instant));
+            } catch (Exception ex) {
+                // use the milliseconds
+            }
+        }
+        return record.getMillis() * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Set the time of a record from nanoseconds since the epoch, keeping the
+     * nanoseconds where records can hold them.
+     */
+    @SuppressWarnings("deprecation")
+    static void setNanos(LogRecord record, long nanos) {
+        long seconds = nanos / NANOS_PER_SECOND;
+        long nano = nanos % NANOS_PER_SECOND;
+        if (nano < 0) {
+            seconds--;
+            nano += NANOS_PER_SECOND;
+        }
+        if (SET_INSTANT != null) {
+            try {
+                SET_INSTANT.invoke(record, OF_EPOCH_SECOND.invoke(null, seconds, nano));
+                return;
+            } catch (Exception ex) {
+                // use the milliseconds
+            }
+        }
+        record.setMillis(seconds * 1000 + nano / NANOS_PER_MILLI);
+    }
+
+    /**
+     * A growable byte buffer that entries are encoded into.  Not thread safe.
+     */
+    static final class Output {
+        private byte[] data = new byte[1024];
+        private int size = 0;
+
+        void reset() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(data, 0, size);
+        }
+
+        private void ensure(int more) {
+            if (size + more > data.length) {
+                byte[] bigger = new byte[Math.max(data.length * 2, size + more)];
+                System.arraycopy(data, 0, bigger, 0, size);
+                data = bigger;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            data[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeUnsigned(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeSigned(long value) {
+            writeUnsigned((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixed(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        /**
+         * Write a string as UTF-8 without creating a byte array.
+         */
+        void writeString(String text) {
+            if (text == null) {
+                writeUnsigned(0);
+                return;
+            }
+            int length = 0;
+            for (int c = 0; c < text.length(); c++) {
+                char ch = text.charAt(c);
+                if (ch < 0x80) {
+                    length += 1;
+                } else if (ch < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(ch) && (c + 1 < text.length()) && Character.isLowSurrogate(text.charAt(c + 1))) {
+                    length += 4;
+                    c++;
+                } else if (Character.isSurrogate(ch)) {
+                    length += 1;
+                } else {
+                    length += 3;
+                }
+            }
+            writeUnsigned(length + 1L);
+            ensure(length);
+            for (int c = 0; c < text.length(); c++) {
+                char ch = text.charAt(c);
+                if (ch < 0x80) {
+                    data[size++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    data[size++] = (byte) (0xc0 | (ch >> 6));
+                    data[size++] = (byte) (0x80 | (ch & 0x3f));
+                } else if (Character.isHighSurrogate(ch) && (c + 1 < text.length()) && Character.isLowSurrogate(text.charAt(c + 1))) {
+                    int code = Character.toCodePoint(ch, text.charAt(++c));
+                    data[size++] = (byte) (0xf0 | (code >> 18));
+                    data[size++] = (byte) (0x80 | ((code >> 12) & 0x3f));
+                    data[size++] = (byte) (0x80 | ((code >> 6) & 0x3f));
+                    data[size++] = (byte) (0x80 | (code & 0x3f));
+                } else if (Character.isSurrogate(ch)) {
+                    // an unpaired surrogate is replaced, as String.getBytes does
+                    data[size++] = '?';
+                } else {
+                    data[size++] = (byte) (0xe0 | (ch >> 12));
+                    data[size++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                    data[size++] = (byte) (0x80 | (ch & 0x3f));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the values written by <code>Output</code>.
+     */
+    static final class Input {
+        private final InputStream in;
+
+        Input(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Read a tag.
+         *
+         * @return Tag, or -1 at the end of the file.
+         */
+        int readTag() throws IOException {
+            return in.read();
+        }
+
+        int readByte() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Log file ends in the middle of a record");
+            }
+            return b;
+        }
+
+        void readFully(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count == -1) {
+                    throw new EOFException("Log file ends in the middle of a record");
+                }
+                offset += count;
+            }
+        }
+
+        long readUnsigned() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed number in log file");
+        }
+
+        long readSigned() throws IOException {
+            long value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readFixed() throws IOException {
+            long value = 0;
+            for (int b = 0; b < 8; b++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        String readString() throws IOException {
+            long length = readUnsigned();
+            if (length == 0) {
+                return null;
+            }
+            if (length - 1 > Integer.MAX_VALUE) {
+                throw new IOException("Malformed string in log file");
+            }
+            byte[] bytes = new byte[(int) (length - 1)];
+            readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+}
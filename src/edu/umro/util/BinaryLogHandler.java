@@ -0,0 +1,411 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * A log handler that writes records in a compact binary form instead of
+ * formatting them as text.  Each record holds its level, time, thread,
+ * sequence number, source, message template and parameters.  Message
+ * templates and sources are written once per file and referred to by number
+ * after that, and parameters that are numbers or booleans are written as
+ * binary values, so no text formatting is done while logging.
+ * <p>
+ * The files are read with <code>BinaryLogDecoder</code>, which renders them
+ * in the same layout as <code>LogFormatter</code>.  See <code>BinaryLogFormat</code>
+ * for the layout of the file.  Parameters that are not numbers, booleans or
+ * strings are recorded as their <code>toString</code>.
+ * <p>
+ * When the file reaches the size limit it is rolled over as is done by
+ * <code>MappedLogFileHandler</code>.  Records are buffered, and the buffer is
+ * written to the file when it is full, for records at or above the flush
+ * level, and on <code>flush</code> and <code>close</code>.  The handler is
+ * configured with these logging properties:
+ * <pre>
+ *     edu.umro.util.BinaryLogHandler.pattern = %h/java.binlog
+ *     edu.umro.util.BinaryLogHandler.limit = 67108864
+ *     edu.umro.util.BinaryLogHandler.count = 5
+ *     edu.umro.util.BinaryLogHandler.level = ALL
+ *     edu.umro.util.BinaryLogHandler.flushLevel = WARNING
+ * </pre>
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class BinaryLogHandler extends Handler {
+
+    /**
+     * Default size in bytes at which the file is rolled over.
+     */
+    public static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    /**
+     * Default number of files kept.
+     */
+    public static final int DEFAULT_COUNT = 5;
+
+    /**
+     * Largest number of templates defined in one file.  Once this many are
+     * defined, other messages are written in place in each record, which
+     * keeps services that build their messages by concatenation from growing
+     * the table without bound.
+     */
+    private static final int MAX_TEMPLATES = 4096;
+
+    /**
+     * Largest number of sources defined in one file.
+     */
+    private static final int MAX_SOURCES = 4096;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long limit;
+    private final int count;
+    private final int flushLevel;
+
+    /**
+     * Stream to the file, or null if it could not be opened.
+     */
+    private OutputStream out = null;
+
+    /**
+     * Number of bytes written to the file.
+     */
+    private long written = 0;
+
+    /**
+     * Reused buffer that each entry is encoded into.
+     */
+    private final BinaryLogFormat.Output output = new BinaryLogFormat.Output();
+
+    /**
+     * Ids of the templates defined in the current file.
+     */
+    private final HashMap<String, Integer> templateMap = new HashMap<String, Integer>();
+
+    /**
+     * Ids of the sources defined in the current file, by class and then method.
+     */
+    private final HashMap<String, HashMap<String, Integer>> sourceMap = new HashMap<String, HashMap<String, Integer>>();
+
+    private int sourceCount = 0;
+
+    private long previousNanos = 0;
+    private long previousSequence = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Stack traces written to the current file, or null if they are not deduplicated.
+     */
+    private final LogTraceCache traceCache = LogTraceCache.newCache();
+
+
+    /**
+     * Construct a handler configured entirely by the logging properties.
+     *
+     * @throws IOException If the log file can not be opened.
+     */
+    public BinaryLogHandler() throws IOException {
+        this(null, -1, -1);
+    }
+
+
+    /**
+     * Construct a handler that writes to the given file.  Other settings are
+     * taken from the logging properties.
+     *
+     * @param pattern Name of the log file, which may contain <code>%h</code> and <code>%t</code>.
+     * @param limit   Size in bytes at which to roll over, or 0 for no limit.
+     * @param count   Number of files to keep.
+     * @throws IOException If the log file can not be opened.
+     */
+    public BinaryLogHandler(String pattern, long limit, int count) throws IOException {
+        LogProperties properties = new LogProperties(getClass());
+        file = (pattern == null) ? properties.getFile("pattern", "%h/java.binlog") : LogProperties.expandPattern(pattern);
+        this.limit = Math.max(0, (limit < 0) ? properties.getLong("limit", DEFAULT_LIMIT) : limit);
+        this.count = Math.max(1, (count < 0) ? properties.getInt("count", DEFAULT_COUNT) : count);
+        flushLevel = properties.getLevel("flushLevel", Level.WARNING).intValue();
+        setLevel(properties.getLevel("level", Level.ALL));
+
+        rollFiles();
+        open();
+    }
+
+
+    /**
+     * Get the file currently being written.
+     *
+     * @return Log file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * Roll the files over, reporting any failure.
+     */
+    private void rollFiles() {
+        try {
+            MappedLogFileHandler.rollFiles(file, count);
+        } catch (IOException ex) {
+            reportError(null, ex, ErrorManager.OPEN_FAILURE);
+        }
+    }
+
+
+    /**
+     * Open a new file and write its header.
+     */
+    private void open() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        written = 0;
+        templateMap.clear();
+        sourceMap.clear();
+        sourceCount = 0;
+        previousNanos = 0;
+        previousSequence = 0;
+        if (traceCache != null) {
+            traceCache.clear();
+        }
+
+        output.reset();
+        output.writeByte(BinaryLogFormat.HEADER);
+        output.writeBytes(BinaryLogFormat.MAGIC);
+        output.writeUnsigned(BinaryLogFormat.VERSION);
+        emit();
+    }
+
+
+    /**
+     * Write the encoded entry to the file.
+     */
+    private void emit() throws IOException {
+        output.writeTo(out);
+        written += output.size();
+        output.reset();
+    }
+
+
+    /**
+     * Get the id of a message template, defining it if necessary.
+     *
+     * @return Id, or 0 if the table is full and the message must be written in place.
+     */
+    private int templateId(String message) throws IOException {
+        Integer id = templateMap.get(message);
+        if (id != null) {
+            return id;
+        }
+        if (templateMap.size() >= MAX_TEMPLATES) {
+            return 0;
+        }
+        id = templateMap.size() + 1;
+        output.writeByte(BinaryLogFormat.TEMPLATE);
+        output.writeUnsigned(id);
+        output.writeString(message);
+        emit();
+        // only once the definition is in the file can records refer to it
+        templateMap.put(message, id);
+        return id;
+    }
+
+
+    /**
+     * Get the id of a source class and method, defining it if necessary.
+     *
+     * @return Id, or 0 if the table is full and the source must be written in place.
+     */
+    private int sourceId(String className, String methodName) throws IOException {
+        HashMap<String, Integer> methodMap = sourceMap.get(className);
+        Integer id = (methodMap == null) ? null : methodMap.get(methodName);
+        if (id != null) {
+            return id;
+        }
+        if (sourceCount >= MAX_SOURCES) {
+            return 0;
+        }
+        id = sourceCount + 1;
+        output.writeByte(BinaryLogFormat.SOURCE);
+        output.writeUnsigned(id);
+        output.writeString(className);
+        output.writeString(methodName);
+        emit();
+        // only once the definition is in the file can records refer to it
+        if (methodMap == null) {
+            methodMap = new HashMap<String, Integer>();
+            sourceMap.put(className, methodMap);
+        }
+        methodMap.put(methodName, id);
+        sourceCount = id;
+        return id;
+    }
+
+
+    /**
+     * Encode one parameter.
+     */
+    private void writeParameter(Object parameter) {
+        if (parameter == null) {
+            output.writeByte(BinaryLogFormat.PARAMETER_NULL);
+        } else if ((parameter instanceof Integer) || (parameter instanceof Short) || (parameter instanceof Byte)) {
+            output.writeByte(BinaryLogFormat.PARAMETER_INT);
+            output.writeSigned(((Number) parameter).intValue());
+        } else if (parameter instanceof Long) {
+            output.writeByte(BinaryLogFormat.PARAMETER_LONG);
+            output.writeSigned((Long) parameter);
+        } else if (parameter instanceof Float) {
+            output.writeByte(BinaryLogFormat.PARAMETER_FLOAT);
+            output.writeUnsigned(Float.floatToIntBits((Float) parameter) & 0xffffffffL);
+        } else if (parameter instanceof Double) {
+            output.writeByte(BinaryLogFormat.PARAMETER_DOUBLE);
+            output.writeFixed(Double.doubleToLongBits((Double) parameter));
+        } else if (parameter instanceof Boolean) {
+            output.writeByte(((Boolean) parameter) ? BinaryLogFormat.PARAMETER_TRUE : BinaryLogFormat.PARAMETER_FALSE);
+        } else {
+            output.writeByte(BinaryLogFormat.PARAMETER_STRING);
+            output.writeString(parameter.toString());
+        }
+    }
+
+
+    /**
+     * Get the text of a throwable and its stack trace as written by
+     * <code>LogFormatter</code>.  Traces are deduplicated within each file, so
+     * that every file can be read on its own.
+     *
+     * @return Stack trace, or null if there is no throwable.
+     */
+    private String stackTrace(Throwable thrown) {
+        if (thrown == null) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        LogFormatter.appendThrowable(thrown, text, traceCache);
+        return text.toString();
+    }
+
+
+    /**
+     * Encode and write a record, rolling over the file if it has reached the size limit.
+     *
+     * @param record Record to publish.
+     */
+    @Override
+    public synchronized void publish(LogRecord record) {
+        if (closed || (out == null) || !isLoggable(record)) {
+            return;
+        }
+        try {
+            String message = record.getMessage();
+            int template = templateId(message);
+            String className = record.getSourceClassName();
+            String methodName = record.getSourceMethodName();
+            int source = ((className == null) && (methodName == null)) ? 0 : sourceId(className, methodName);
+
+            long nanos = BinaryLogFormat.getNanos(record);
+            output.writeByte(BinaryLogFormat.RECORD);
+            output.writeSigned(record.getLevel().intValue());
+            output.writeSigned(nanos - previousNanos);
+            output.writeSigned(record.getSequenceNumber() - previousSequence);
+            output.writeUnsigned(record.getThreadID() & 0xffffffffL);
+            output.writeUnsigned(template);
+            if (template == 0) {
+                output.writeString(message);
+            }
+            output.writeUnsigned(source);
+            if (source == 0) {
+                output.writeString(className);
+                output.writeString(methodName);
+            }
+            Object[] parameterList = record.getParameters();
+            int parameterCount = (parameterList == null) ? 0 : parameterList.length;
+            output.writeUnsigned(parameterCount);
+            for (int p = 0; p < parameterCount; p++) {
+                writeParameter(parameterList[p]);
+            }
+            output.writeString(stackTrace(record.getThrown()));
+            emit();
+            previousNanos = nanos;
+            previousSequence = record.getSequenceNumber();
+
+            if (record.getLevel().intValue() >= flushLevel) {
+                out.flush();
+            }
+        } catch (Exception ex) {
+            output.reset();
+            reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            return;
+        }
+        if ((limit > 0) && (written >= limit)) {
+            closeFile();
+            rollFiles();
+            try {
+                open();
+            } catch (IOException ex) {
+                out = null;
+                reportError(null, ex, ErrorManager.OPEN_FAILURE);
+            }
+        }
+    }
+
+
+    /**
+     * Write buffered records to the file.
+     */
+    @Override
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                reportError(null, ex, ErrorManager.FLUSH_FAILURE);
+            }
+        }
+    }
+
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+            }
+            out = null;
+        }
+    }
+
+
+    /**
+     * Write buffered records and close the file.
+     */
+    @Override
+    public synchronized void close() throws SecurityException {
+        closed = true;
+        closeFile();
+    }
+
+}
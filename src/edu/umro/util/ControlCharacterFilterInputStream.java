@@ -0,0 +1,78 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+
+/**
+ * Replace ASCII control characters as bytes are read so that they can be
+ * parsed as XML without first being decoded.  Tab, carriage return and line
+ * feed are passed through.
+ * <p>
+ * This only works for encodings such as UTF-8, US-ASCII and ISO-8859-1 where
+ * bytes 0 through 31 and 127 are never part of a multi-byte character.  It
+ * must not be used for UTF-16.  Use <code>ControlCharacterFilterReader</code>
+ * to also replace the C1 control characters.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class ControlCharacterFilterInputStream extends FilterInputStream {
+
+    /**
+     * Put in place of each control character.
+     */
+    private final byte replacement;
+
+    /**
+     * Construct a stream that filters the given stream.
+     *
+     * @param in          Source of bytes.
+     * @param replacement ASCII character to put in place of each control character.
+     */
+    public ControlCharacterFilterInputStream(InputStream in, char replacement) {
+        super(in);
+        if (replacement > 127) {
+            throw new IllegalArgumentException("Replacement character must be ASCII: " + (int) replacement);
+        }
+        this.replacement = (byte) replacement;
+    }
+
+    /**
+     * Determine if a byte is an ASCII control character.
+     */
+    private static boolean isControlByte(int b) {
+        return (b >= 0) && (b < 128) && XML.isControlChar(b);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        return isControlByte(b) ? replacement : b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        int count = super.read(buf, off, len);
+        for (int b = off; b < off + count; b++) {
+            if (isControlByte(buf[b])) {
+                buf[b] = replacement;
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,65 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+
+/**
+ * Replace control characters as text is read so that it can be parsed as XML.
+ * This is the streaming equivalent of <code>XML.replaceControlCharacters</code>
+ * and uses the same definition of a control character, so tab, carriage return
+ * and line feed are passed through.  Characters are replaced in place in the
+ * caller's buffer.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class ControlCharacterFilterReader extends FilterReader {
+
+    /**
+     * Put in place of each control character.
+     */
+    private final char replacement;
+
+    /**
+     * Construct a reader that filters the given reader.
+     *
+     * @param in          Source of text.
+     * @param replacement Character to put in place of each control character.
+     */
+    public ControlCharacterFilterReader(Reader in, char replacement) {
+        super(in);
+        this.replacement = replacement;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = super.read();
+        return XML.isControlChar(c) ? replacement : c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int count = super.read(cbuf, off, len);
+        for (int c = off; c < off + count; c++) {
+            if (XML.isControlChar(cbuf[c])) {
+                cbuf[c] = replacement;
+            }
+        }
+        return count;
+    }
+
+}
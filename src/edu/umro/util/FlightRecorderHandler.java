@@ -0,0 +1,349 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.Formatter;
+import java.util.logging.*;
+
+import javax.management.*;
+
+/**
+ * A log handler that keeps the most recent records in memory and writes them
+ * to a file only when something goes wrong.  Installed next to a
+ * <code>LogFileHandler</code> with the loggers at <code>ALL</code> and the
+ * file handler at <code>INFO</code>, it gives the full debugging context of
+ * an incident without writing debug records to disk the rest of the time.
+ * <p>
+ * Records are kept unformatted in a ring of fixed size that is allocated when
+ * the handler is created, so recording a record takes no lock and allocates
+ * nothing.  The source of each record is found as it is recorded, because the
+ * stack of the logging thread is gone by the time it is dumped.  Parameters
+ * are kept by reference and formatted when dumped.
+ * <p>
+ * The ring is dumped when a record at or above the dump level is published,
+ * at most once per dump interval, or at any time by calling <code>dump</code>
+ * or through JMX, where the handler is registered under
+ * <code>edu.umro.util:type=FlightRecorderHandler</code>.  Automatic dumps are
+ * written by a background thread.  Each dump is a new file named by appending
+ * the time to the pattern, such as <code>java-flight.log.2012-06-01-142233-517</code>,
+ * formatted with a <code>LogFormatter</code> by default, and old dumps are
+ * compressed and deleted as for <code>LogFileHandler</code>.  The handler is
+ * configured with these logging properties:
+ * <pre>
+ *     edu.umro.util.FlightRecorderHandler.size = 10000
+ *     edu.umro.util.FlightRecorderHandler.level = ALL
+ *     edu.umro.util.FlightRecorderHandler.dumpLevel = SEVERE
+ *     edu.umro.util.FlightRecorderHandler.dumpInterval = 60000
+ *     edu.umro.util.FlightRecorderHandler.pattern = %h/java-flight.log
+ *     edu.umro.util.FlightRecorderHandler.compress = true
+ *     edu.umro.util.FlightRecorderHandler.maxTotalSize = 1073741824
+ *     edu.umro.util.FlightRecorderHandler.maxAgeHours = 720
+ *     edu.umro.util.FlightRecorderHandler.jmx = true
+ * </pre>
+ * where the interval is in milliseconds and sizes and ages of 0 mean no limit.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class FlightRecorderHandler extends Handler implements FlightRecorderHandlerMBean {
+
+    /**
+     * Default number of records kept.
+     */
+    public static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * Default shortest time in milliseconds between automatic dumps.
+     */
+    public static final long DEFAULT_DUMP_INTERVAL = 60 * 1000;
+
+    /**
+     * Format of the time appended to the names of dump files.
+     */
+    private static final String DUMP_NAME_FORMAT = "yyyy-MM-dd-HHmmss-SSS";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Recorded records.  The record at each position is in the slot given by
+     * the position modulo the size of the ring, which is the configured size
+     * rather than a power of 2 so that exactly that many records are kept.
+     */
+    private final AtomicReferenceArray<LogRecord> ring;
+
+    /**
+     * Position at which the next record is recorded.
+     */
+    private final AtomicLong next = new AtomicLong(0);
+
+    private final File file;
+    private final int dumpLevelValue;
+    private final long dumpInterval;
+
+    /**
+     * Time of the last automatic dump, or of the first trigger if the interval has not passed since.
+     */
+    private final AtomicLong lastAutomaticDump = new AtomicLong(Long.MIN_VALUE / 2);
+
+    private final AtomicLong dumpCount = new AtomicLong(0);
+
+    /**
+     * Compresses and deletes old dumps.
+     */
+    private final LogArchiver archiver;
+
+    /**
+     * Writes automatic dumps.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Name the MBean is registered with, or null if it is not registered.
+     */
+    private ObjectName objectName = null;
+
+    private volatile boolean closed = false;
+
+
+    /**
+     * Construct a handler configured entirely by the logging properties.
+     */
+    public FlightRecorderHandler() {
+        this(null, -1);
+    }
+
+
+    /**
+     * Construct a handler that dumps to files named by the given pattern.
+     * Other settings are taken from the logging properties.
+     *
+     * @param pattern Name of the dump files, which may contain <code>%h</code> and <code>%t</code>.
+     * @param size    Number of records to keep.
+     */
+    public FlightRecorderHandler(String pattern, int size) {
+        LogProperties properties = new LogProperties(getClass());
+        file = ((pattern == null) ? properties.getFile("pattern", "%h/java-flight.log") : LogProperties.expandPattern(pattern)).getAbsoluteFile();
+        ring = new AtomicReferenceArray<LogRecord>(Math.max(1, (size < 0) ? properties.getInt("size", DEFAULT_SIZE) : size));
+        dumpLevelValue = properties.getLevel("dumpLevel", Level.SEVERE).intValue();
+        dumpInterval = Math.max(0, properties.getLong("dumpInterval", DEFAULT_DUMP_INTERVAL));
+        setLevel(properties.getLevel("level", Level.ALL));
+        setFormatter(new LogFormatter());
+        try {
+            setEncoding(properties.getString("encoding", null));
+        } catch (UnsupportedEncodingException ex) {
+            reportError("Unsupported encoding", ex, ErrorManager.GENERIC_FAILURE);
+        }
+
+        archiver = new LogArchiver(file, DUMP_NAME_FORMAT, properties.getBoolean("compress", true),
+                properties.getLong("maxTotalSize", 0), properties.getLong("maxAgeHours", 0) * 60 * 60 * 1000, getErrorManager());
+        final String threadName = getClass().getSimpleName() + " dump";
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (properties.getBoolean("jmx", true)) {
+            try {
+                objectName = LogMetrics.registerMBean(this, getClass().getSimpleName(), file.getPath());
+            } catch (Exception ex) {
+                reportError("Unable to register flight recorder MBean", ex, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
+
+
+    /**
+     * Record a record, and dump the records in the background if it is at or
+     * above the dump level and the dump interval has passed.
+     *
+     * @param record Record to keep.
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // The source is found by looking at the stack, so it must be done on the calling thread.
+        record.getSourceClassName();
+        ring.lazySet((int) (next.getAndIncrement() % ring.length()), record);
+
+        if (record.getLevel().intValue() >= dumpLevelValue) {
+            long now = System.currentTimeMillis();
+            long last = lastAutomaticDump.get();
+            if ((now - last >= dumpInterval) && lastAutomaticDump.compareAndSet(last, now)) {
+                final LogRecord[] recordList = snapshot();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                write(recordList);
+                            } catch (Exception ex) {
+                                reportError("Unable to dump flight recorder", ex, ErrorManager.WRITE_FAILURE);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    // closed
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Copy the recorded records, oldest first.
+     */
+    private LogRecord[] snapshot() {
+        long end = next.get();
+        ArrayList<LogRecord> recordList = new ArrayList<LogRecord>(ring.length());
+        for (long position = Math.max(0, end - ring.length()); position < end; position++) {
+            LogRecord record = ring.get((int) (position % ring.length()));
+            if (record != null) {
+                recordList.add(record);
+            }
+        }
+        // slots may have been overwritten by newer records while copying
+        Collections.sort(recordList, new Comparator<LogRecord>() {
+            @Override
+            public int compare(LogRecord a, LogRecord b) {
+                return Long.compare(a.getSequenceNumber(), b.getSequenceNumber());
+            }
+        });
+        return recordList.toArray(new LogRecord[recordList.size()]);
+    }
+
+
+    /**
+     * Write records to a new dump file.
+     *
+     * @return File written.
+     */
+    private File write(LogRecord[] recordList) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        String name = file.getPath() + "." + new SimpleDateFormat(DUMP_NAME_FORMAT).format(new Date());
+        File dump = new File(name);
+        synchronized (file) {
+            for (int n = 1; dump.exists(); n++) {
+                dump = new File(name + "." + n);
+            }
+            dump.createNewFile();
+        }
+        Formatter formatter = getFormatter();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(dump), BUFFER_SIZE);
+        Writer writer = (getEncoding() == null) ? new OutputStreamWriter(out) : new OutputStreamWriter(out, getEncoding());
+        try {
+            writer.write(formatter.getHead(this));
+            for (LogRecord record : recordList) {
+                try {
+                    writer.write(formatter.format(record));
+                } catch (RuntimeException ex) {
+                    reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+                }
+            }
+            writer.write(formatter.getTail(this));
+        } finally {
+            writer.close();
+        }
+        dumpCount.incrementAndGet();
+        archiver.schedule();
+        return dump;
+    }
+
+
+    /**
+     * Write the recorded records to a new file now, on the calling thread.
+     *
+     * @return File written.
+     * @throws IOException If the file could not be written.
+     */
+    public File dump() throws IOException {
+        return write(snapshot());
+    }
+
+
+    @Override
+    public String dumpToFile() throws IOException {
+        return dump().getPath();
+    }
+
+
+    @Override
+    public int getCapacity() {
+        return ring.length();
+    }
+
+
+    @Override
+    public long getRecordedCount() {
+        return next.get();
+    }
+
+
+    @Override
+    public long getDumpCount() {
+        return dumpCount.get();
+    }
+
+
+    /**
+     * Records are only written when dumped, so there is nothing to flush.
+     */
+    @Override
+    public void flush() {
+    }
+
+
+    /**
+     * Stop recording, finish any automatic dump in progress, and unregister the MBean.
+     */
+    @Override
+    public synchronized void close() throws SecurityException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        archiver.shutdown();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception ex) {
+                reportError("Unable to unregister flight recorder MBean", ex, ErrorManager.CLOSE_FAILURE);
+            }
+            objectName = null;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Management interface of <code>FlightRecorderHandler</code>, through which
+ * the recorded records can be dumped with JMX.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public interface FlightRecorderHandlerMBean {
+
+    /**
+     * Write the recorded records to a new file.
+     *
+     * @return Name of the file written.
+     * @throws java.io.IOException If the file could not be written.
+     */
+    String dumpToFile() throws java.io.IOException;
+
+    /** @return Number of records kept. */
+    int getCapacity();
+
+    /** @return Number of records recorded since the handler was created. */
+    long getRecordedCount();
+
+    /** @return Number of times the records have been dumped. */
+    long getDumpCount();
+
+}
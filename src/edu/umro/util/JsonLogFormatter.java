@@ -0,0 +1,285 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+import java.util.logging.Formatter;
+import java.util.logging.*;
+
+/**
+ * Format each log record as a JSON object on a line of its own (JSON Lines),
+ * so that log shipping tools can read the fields without parsing text:
+ * <pre>
+ *     {"level":"INFO","time":"2012-06-01T10:02:03.517-04:00","message":"Started","logger":"edu.umro.util.Log",
+ *      "class":"edu.umro.Service","method":"main","seq":17,"thread":1}
+ * </pre>
+ * Records with a throwable also have a <code>thrown</code> field holding the
+ * text written by <code>LogFormatter</code> for it.  Fields that are null are
+ * left out.
+ * <p>
+ * Records are encoded as UTF-8 directly into a reusable byte buffer for each
+ * thread, with the field names encoded ahead of time and strings escaped as
+ * they are encoded.  <code>LogFileHandler</code> writes the bytes straight to
+ * the file.  It is used by setting the formatter property of a handler:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.formatter = edu.umro.util.JsonLogFormatter
+ * </pre>
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class JsonLogFormatter extends Formatter {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    private static final byte[] LEVEL = "{\"level\":".getBytes(UTF_8);
+    private static final byte[] TIME = ",\"time\":\"".getBytes(UTF_8);
+    private static final byte[] MESSAGE = ",\"message\":".getBytes(UTF_8);
+    private static final byte[] LOGGER = ",\"logger\":".getBytes(UTF_8);
+    private static final byte[] CLASS = ",\"class\":".getBytes(UTF_8);
+    private static final byte[] METHOD = ",\"method\":".getBytes(UTF_8);
+    private static final byte[] SEQUENCE = ",\"seq\":".getBytes(UTF_8);
+    private static final byte[] THREAD = ",\"thread\":".getBytes(UTF_8);
+    private static final byte[] THROWN = ",\"thrown\":".getBytes(UTF_8);
+    private static final byte[] END = "}\n".getBytes(UTF_8);
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+
+    /**
+     * Format of the part of the time stamp that only changes once a second.
+     */
+    private static final String SECOND_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.";
+
+    /**
+     * A thread's buffers are replaced if a very long record made them larger than this.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /**
+     * Encoding state kept for each thread.
+     */
+    private static class State {
+        byte[] bytes = new byte[512];
+        int size = 0;
+        StringBuilder text = new StringBuilder(256);
+        final SimpleDateFormat secondFormat = new SimpleDateFormat(SECOND_FORMAT);
+        final SimpleDateFormat zoneFormat = new SimpleDateFormat("XXX");
+        long second = Long.MIN_VALUE;
+        byte[] secondBytes = null;
+        byte[] zoneBytes = null;
+
+        void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+
+        void append(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        void append(long value) {
+            String digits = Long.toString(value);
+            ensure(digits.length());
+            for (int c = 0; c < digits.length(); c++) {
+                bytes[size++] = (byte) digits.charAt(c);
+            }
+        }
+
+        /**
+         * Append a JSON string, or <code>null</code>, escaping and encoding it in one pass.
+         */
+        void appendString(CharSequence value) {
+            if (value == null) {
+                append(NULL);
+                return;
+            }
+            int length = value.length();
+            // the longest encoding of a character is 6 bytes
+            ensure(length * 6 + 2);
+            byte[] b = bytes;
+            int s = size;
+            b[s++] = '"';
+            for (int c = 0; c < length; c++) {
+                char ch = value.charAt(c);
+                if (ch < 0x80) {
+                    if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+                        b[s++] = (byte) ch;
+                    } else {
+                        b[s++] = '\\';
+                        switch (ch) {
+                            case '"':
+                                b[s++] = '"';
+                                break;
+                            case '\\':
+                                b[s++] = '\\';
+                                break;
+                            case '\n':
+                                b[s++] = 'n';
+                                break;
+                            case '\r':
+                                b[s++] = 'r';
+                                break;
+                            case '\t':
+                                b[s++] = 't';
+                                break;
+                            default:
+                                b[s++] = 'u';
+                                b[s++] = '0';
+                                b[s++] = '0';
+                                b[s++] = HEX[ch >> 4];
+                                b[s++] = HEX[ch & 0xf];
+                        }
+                    }
+                } else if (ch < 0x800) {
+                    b[s++] = (byte) (0xc0 | (ch >> 6));
+                    b[s++] = (byte) (0x80 | (ch & 0x3f));
+                } else if (Character.isHighSurrogate(ch) && (c + 1 < length) && Character.isLowSurrogate(value.charAt(c + 1))) {
+                    int code = Character.toCodePoint(ch, value.charAt(++c));
+                    b[s++] = (byte) (0xf0 | (code >> 18));
+                    b[s++] = (byte) (0x80 | ((code >> 12) & 0x3f));
+                    b[s++] = (byte) (0x80 | ((code >> 6) & 0x3f));
+                    b[s++] = (byte) (0x80 | (code & 0x3f));
+                } else if (Character.isSurrogate(ch)) {
+                    // an unpaired surrogate is replaced, as String.getBytes does
+                    b[s++] = '?';
+                } else {
+                    b[s++] = (byte) (0xe0 | (ch >> 12));
+                    b[s++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                    b[s++] = (byte) (0x80 | (ch & 0x3f));
+                }
+            }
+            b[s++] = '"';
+            size = s;
+        }
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+
+    public JsonLogFormatter() {
+        super();
+    }
+
+    /**
+     * Append a time stamp of the form <code>yyyy-MM-ddTHH:mm:ss.SSS+hh:mm</code>.
+     */
+    private static void appendTime(State st, long millis) {
+        long ms = millis % 1000;
+        if (ms < 0) {
+            ms += 1000;
+        }
+        long second = millis - ms;
+        if (second != st.second) {
+            Date date = new Date(second);
+            st.secondBytes = st.secondFormat.format(date).getBytes(UTF_8);
+            st.zoneBytes = st.zoneFormat.format(date).getBytes(UTF_8);
+            st.second = second;
+        }
+        st.append(st.secondBytes);
+        st.ensure(3);
+        st.bytes[st.size++] = (byte) ('0' + (ms / 100));
+        st.bytes[st.size++] = (byte) ('0' + ((ms / 10) % 10));
+        st.bytes[st.size++] = (byte) ('0' + (ms % 10));
+        st.append(st.zoneBytes);
+    }
+
+    /**
+     * Encode a record into this thread's buffer.
+     *
+     * @return This thread's state, whose buffer holds the record.
+     */
+    private State encode(LogRecord record) {
+        State st = state.get();
+        if (st.bytes.length > MAX_RETAINED_CAPACITY) {
+            st.bytes = new byte[512];
+        }
+        if (st.text.capacity() > MAX_RETAINED_CAPACITY) {
+            st.text = new StringBuilder(256);
+        }
+        st.size = 0;
+        st.append(LEVEL);
+        st.appendString(record.getLevel().getName());
+        st.append(TIME);
+        appendTime(st, record.getMillis());
+        st.ensure(1);
+        st.bytes[st.size++] = '"';
+        st.append(MESSAGE);
+        st.appendString(formatMessage(record));
+        if (record.getLoggerName() != null) {
+            st.append(LOGGER);
+            st.appendString(record.getLoggerName());
+        }
+        String className = record.getSourceClassName();
+        if (className != null) {
+            st.append(CLASS);
+            st.appendString(className);
+        }
+        String methodName = record.getSourceMethodName();
+        if (methodName != null) {
+            st.append(METHOD);
+            st.appendString(methodName);
+        }
+        st.append(SEQUENCE);
+        st.append(record.getSequenceNumber());
+        st.append(THREAD);
+        st.append(record.getThreadID());
+        if (record.getThrown() != null) {
+            st.text.setLength(0);
+            LogFormatter.appendThrowable(record.getThrown(), st.text);
+            st.append(THROWN);
+            st.appendString(st.text);
+        }
+        st.append(END);
+        return st;
+    }
+
+    /**
+     * Write a record as a line of UTF-8 encoded JSON without making a string of it.
+     *
+     * @param record Record to write.
+     * @param out    Destination.
+     * @throws IOException If the destination can not be written.
+     */
+    public void write(LogRecord record, OutputStream out) throws IOException {
+        State st = encode(record);
+        out.write(st.bytes, 0, st.size);
+    }
+
+    /**
+     * Format a record as a line of JSON.
+     *
+     * @param record Record to format.
+     * @return JSON object followed by a newline.
+     */
+    @Override
+    public String format(LogRecord record) {
+        State st = encode(record);
+        return new String(st.bytes, 0, st.size, UTF_8);
+    }
+
+}
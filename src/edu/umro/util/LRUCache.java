@@ -0,0 +1,57 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.*;
+
+/**
+ * A map bounded to a fixed number of entries that discards the least
+ * recently used entry when it becomes full.
+ * <p>
+ * This class is not thread safe.  Callers must either confine an instance
+ * to a single thread or synchronize on it.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class LRUCache<K, V> extends LinkedHashMap<K, V> {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 4166306402941416392L;
+
+    /**
+     * Maximum number of entries kept.
+     */
+    private final int maxSize;
+
+    /**
+     * Construct a cache that holds at most <code>maxSize</code> entries.
+     *
+     * @param maxSize Maximum number of entries.
+     */
+    LRUCache(int maxSize) {
+        super(16, 0.75f, true);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+    }
+
+}
@@ -26,6 +26,19 @@ import java.util.logging.*;
  * In general, all logging is sent to files that are overwritten on a rotating
  * basis.
  * 8.0008.000
+ * <p>
+ * The <code>log</code>, <code>severe</code>, <code>warning</code>,
+ * <code>info</code>, <code>fine</code> and <code>finest</code> methods do
+ * nothing more than a level check unless the message will be logged.  Messages
+ * are either a <code>java.text.MessageFormat</code> pattern with parameters,
+ * as in
+ * <pre>
+ *     Log.fine("Read {0} bytes from {1}", size, fileName);
+ * </pre>
+ * or a <code>MessageSupplier</code>.  In both cases, and for any throwable,
+ * the text is only built when the record is formatted by a handler, which
+ * may be on a background writer thread, so parameters and suppliers should
+ * not depend on state that the caller goes on to change.
  *
  * @author Jim Irrer irrer@umich.edu
  * @deprecated This functionality has been superseded by the more flexible slf4j
@@ -50,6 +63,45 @@ public class Log {
      */
     private volatile static LogFormatter serviceFormatter = null;
 
+    /**
+     * Level of the handler, kept so that it can be checked without calling into the handler.
+     */
+    private volatile static int handlerLevelValue = Level.ALL.intValue();
+
+    /**
+     * Provides the text of a message only when it is needed.
+     */
+    public interface MessageSupplier {
+        /**
+         * Get the text of the message.
+         *
+         * @return Message text.
+         */
+        String get();
+    }
+
+    /**
+     * Passed as the parameter of a message so that the supplier is only
+     * called when the message is formatted.
+     */
+    private static class SuppliedMessage {
+        private final MessageSupplier supplier;
+
+        SuppliedMessage(MessageSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public String toString() {
+            return supplier.get();
+        }
+    }
+
+    /**
+     * Message pattern that formats as the supplied message.
+     */
+    private static final String SUPPLIED_PATTERN = "{0}";
+
     /**
      * Get the service-wide logger.
      *
@@ -70,6 +122,143 @@ public class Log {
     public static void setLevel(Level level) throws SecurityException, IOException {
         initLogging();
         handler.setLevel(level);
+        handlerLevelValue = level.intValue();
+    }
+
+    /**
+     * Determine whether a message at the given level would be logged, taking
+     * into account both the logger and handler levels.  This is cheap enough
+     * to guard any code that prepares a message.
+     *
+     * @param level Level of message.
+     * @return True if the message would be logged.
+     */
+    public static boolean isLoggable(Level level) {
+        Logger logger = serviceLogger;
+        if (logger == null) {
+            logger = get();
+        }
+        return (level.intValue() >= handlerLevelValue) && logger.isLoggable(level);
+    }
+
+    /**
+     * Log a message if the level is enabled.  The source of the record is the
+     * caller of the <code>Log</code> method.
+     *
+     * @param level      Level of message.
+     * @param thrown     Throwable to log with the message, may be null.
+     * @param message    Message, which is a <code>MessageFormat</code> pattern if there are parameters.
+     * @param parameters Parameters of message.
+     */
+    private static void logRecord(Level level, Throwable thrown, String message, Object[] parameters) {
+        LogRecord record = new LogRecord(level, message);
+        if ((parameters != null) && (parameters.length > 0)) {
+            record.setParameters(parameters);
+        }
+        record.setThrown(thrown);
+        for (StackTraceElement ste : new Throwable().getStackTrace()) {
+            if (!ste.getClassName().equals(Log.class.getName())) {
+                record.setSourceClassName(ste.getClassName());
+                record.setSourceMethodName(ste.getMethodName());
+                break;
+            }
+        }
+        Logger logger = serviceLogger;
+        record.setLoggerName(logger.getName());
+        logger.log(record);
+    }
+
+    /**
+     * Log a message with parameters.
+     *
+     * @param level      Level of message.
+     * @param message    <code>MessageFormat</code> pattern, or plain text if there are no parameters.
+     * @param parameters Parameters of message.
+     */
+    public static void log(Level level, String message, Object... parameters) {
+        if (isLoggable(level)) {
+            logRecord(level, null, message, parameters);
+        }
+    }
+
+    /**
+     * Log a message with parameters and a throwable, whose stack trace is
+     * formatted by the handler.
+     *
+     * @param level      Level of message.
+     * @param thrown     Throwable to log.
+     * @param message    <code>MessageFormat</code> pattern, or plain text if there are no parameters.
+     * @param parameters Parameters of message.
+     */
+    public static void log(Level level, Throwable thrown, String message, Object... parameters) {
+        if (isLoggable(level)) {
+            logRecord(level, thrown, message, parameters);
+        }
+    }
+
+    /**
+     * Log a supplied message.
+     *
+     * @param level    Level of message.
+     * @param supplier Called to get the message if it is formatted.
+     */
+    public static void log(Level level, MessageSupplier supplier) {
+        if (isLoggable(level)) {
+            logRecord(level, null, SUPPLIED_PATTERN, new Object[]{new SuppliedMessage(supplier)});
+        }
+    }
+
+    /**
+     * Log a supplied message with a throwable.
+     *
+     * @param level    Level of message.
+     * @param thrown   Throwable to log.
+     * @param supplier Called to get the message if it is formatted.
+     */
+    public static void log(Level level, Throwable thrown, MessageSupplier supplier) {
+        if (isLoggable(level)) {
+            logRecord(level, thrown, SUPPLIED_PATTERN, new Object[]{new SuppliedMessage(supplier)});
+        }
+    }
+
+    public static void severe(String message, Object... parameters) {
+        log(Level.SEVERE, message, parameters);
+    }
+
+    public static void severe(Throwable thrown, String message, Object... parameters) {
+        log(Level.SEVERE, thrown, message, parameters);
+    }
+
+    public static void warning(String message, Object... parameters) {
+        log(Level.WARNING, message, parameters);
+    }
+
+    public static void warning(Throwable thrown, String message, Object... parameters) {
+        log(Level.WARNING, thrown, message, parameters);
+    }
+
+    public static void info(String message, Object... parameters) {
+        log(Level.INFO, message, parameters);
+    }
+
+    public static void info(MessageSupplier supplier) {
+        log(Level.INFO, supplier);
+    }
+
+    public static void fine(String message, Object... parameters) {
+        log(Level.FINE, message, parameters);
+    }
+
+    public static void fine(MessageSupplier supplier) {
+        log(Level.FINE, supplier);
+    }
+
+    public static void finest(String message, Object... parameters) {
+        log(Level.FINEST, message, parameters);
+    }
+
+    public static void finest(MessageSupplier supplier) {
+        log(Level.FINEST, supplier);
     }
 
     /**
@@ -114,9 +303,8 @@ public class Log {
      * @return Human readable version of <code>Throwable</code> and stack trace.
      */
     public static String fmtEx(Throwable throwable) {
-        StringBuffer buf = new StringBuffer(throwable.toString());
-        for (StackTraceElement ste : throwable.getStackTrace())
-            buf.append("\n    " + ste);
+        StringBuilder buf = new StringBuilder();
+        LogFormatter.appendThrowable(throwable, buf);
         return buf.toString();
     }
 
@@ -129,9 +317,11 @@ public class Log {
                 makeLogDir();
                 Handler hndlr = new LogFileHandler();
                 Logger sl = Logger.getLogger(Log.class.getName());
-                serviceFormatter = new LogFormatter();
-                hndlr.setFormatter(serviceFormatter);
+                if (hndlr.getFormatter() instanceof LogFormatter) {
+                    serviceFormatter = (LogFormatter) hndlr.getFormatter();
+                }
 
+                handlerLevelValue = hndlr.getLevel().intValue();
                 handler = hndlr;
                 serviceLogger = sl;
             } catch (SecurityException ex) {
@@ -155,6 +345,7 @@ public class Log {
             logger.setLevel(Level.ALL);
             hndlr.setLevel(Level.ALL);
 
+            handlerLevelValue = Level.ALL.intValue();
             handler = hndlr;
             serviceLogger = logger;
         }
@@ -0,0 +1,272 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/**
+ * Compress and delete the files rolled over from a log file on a low
+ * priority background thread, so that the thread that rolled the file over
+ * is not held up.
+ * <p>
+ * Rolled files are those in the same directory named by the name of the log
+ * file, a period and a time in the format the files were rolled with,
+ * optionally followed by a period and a number to make the name unique, for
+ * example <code>service.log.2012-06-01</code> or
+ * <code>service.log.2012-06-01.2</code>.  Other files that happen to start with
+ * the name of the log file are left alone.  Each is compressed with gzip to a
+ * file with <code>.gz</code> appended to its name.  The oldest rolled files
+ * are then deleted until their total size is within the limit, and any that
+ * are older than the age limit are deleted.  The index <code>LogReader</code>
+ * keeps for a file (see <code>LogIndex</code>) is deleted along with it, and
+ * when it is compressed, since the index only describes the uncompressed file.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class LogArchiver {
+
+    /**
+     * Suffix of compressed files.
+     */
+    static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * Suffix of a compressed file that is being written.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File logFile;
+
+    /**
+     * Matches the names of rolled files, compressed or not.
+     */
+    private final Pattern rolledName;
+    private final boolean compress;
+    private final long maxTotalSize;
+    private final long maxAge;
+
+    /**
+     * Reports failures.
+     */
+    private final ErrorManager errorManager;
+
+    /**
+     * Runs the maintenance, one pass at a time.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * True while a pass is waiting to run.
+     */
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    /**
+     * Construct an archiver.
+     *
+     * @param logFile      Log file whose rolled over files are maintained.
+     * @param nameFormat   <code>SimpleDateFormat</code> pattern of the times in the names of rolled files.
+     * @param compress     If true, compress rolled files.
+     * @param maxTotalSize Largest total size in bytes of rolled files, or 0 for no limit.
+     * @param maxAge       Longest time in milliseconds to keep a rolled file, or 0 for no limit.
+     * @param errorManager Reports failures.
+     */
+    LogArchiver(File logFile, String nameFormat, boolean compress, long maxTotalSize, long maxAge, ErrorManager errorManager) {
+        this.logFile = logFile.getAbsoluteFile();
+        rolledName = Pattern.compile(Pattern.quote(this.logFile.getName() + ".") + timePattern(nameFormat)
+                + "(\\.\\d+)?(" + Pattern.quote(GZIP_SUFFIX) + "(" + Pattern.quote(TEMPORARY_SUFFIX) + ")?)?");
+        this.compress = compress;
+        this.maxTotalSize = maxTotalSize;
+        this.maxAge = maxAge;
+        this.errorManager = errorManager;
+        final String threadName = LogArchiver.class.getSimpleName() + " " + logFile.getName();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedule a pass over the rolled files.  Passes that are requested while
+     * one is waiting to run are combined with it.
+     */
+    void schedule() {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shut down
+        }
+    }
+
+    /**
+     * Stop accepting passes.  A pass that is in progress is allowed to finish.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Get a regular expression matching the times written with a
+     * <code>SimpleDateFormat</code> pattern whose fields are all numbers, as
+     * those used to name rolled files are.
+     */
+    private static String timePattern(String nameFormat) {
+        StringBuilder regex = new StringBuilder();
+        boolean quoted = false;
+        for (int c = 0; c < nameFormat.length(); c++) {
+            char ch = nameFormat.charAt(c);
+            if (ch == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && (((ch >= 'a') && (ch <= 'z')) || ((ch >= 'A') && (ch <= 'Z')))) {
+                regex.append("\\d");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(ch)));
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Get the files rolled over from the log file.
+     */
+    private File[] listRolledFiles() {
+        File dir = logFile.getParentFile();
+        File[] fileList = (dir == null) ? null : dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return rolledName.matcher(file.getName()).matches() && file.isFile();
+            }
+        });
+        return (fileList == null) ? new File[0] : fileList;
+    }
+
+    /**
+     * Compress a file, keeping its modification time, and delete the original.
+     */
+    private void compress(File file) throws IOException {
+        File temporary = new File(file.getPath() + GZIP_SUFFIX + TEMPORARY_SUFFIX);
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(temporary), BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int size;
+                while ((size = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, size);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        File compressed = new File(file.getPath() + GZIP_SUFFIX);
+        temporary.setLastModified(file.lastModified());
+        if (!temporary.renameTo(compressed)) {
+            temporary.delete();
+            throw new IOException("Unable to rename " + temporary + " to " + compressed);
+        }
+        file.delete();
+        deleteIndex(file);
+    }
+
+    /**
+     * Delete the index of a rolled file, if it has one.
+     */
+    private static void deleteIndex(File file) {
+        LogIndex.indexFile(file).delete();
+    }
+
+    /**
+     * Compress any rolled files that are not compressed, and then delete the
+     * files that exceed the limits.
+     */
+    private void maintain() {
+        pending.set(false);
+        if (compress) {
+            for (File file : listRolledFiles()) {
+                String name = file.getName();
+                if (name.endsWith(TEMPORARY_SUFFIX)) {
+                    // left over from an interrupted pass
+                    file.delete();
+                } else if (!name.endsWith(GZIP_SUFFIX)) {
+                    try {
+                        compress(file);
+                    } catch (Exception ex) {
+                        errorManager.error("Unable to compress " + file, ex, ErrorManager.GENERIC_FAILURE);
+                    }
+                }
+            }
+        }
+
+        if ((maxTotalSize <= 0) && (maxAge <= 0)) {
+            return;
+        }
+        // files rolled since compressing started are left for the next pass
+        ArrayList<File> fileList = new ArrayList<File>();
+        final HashMap<File, Long> modified = new HashMap<File, Long>();
+        for (File file : listRolledFiles()) {
+            String name = file.getName();
+            if (!name.endsWith(TEMPORARY_SUFFIX) && (!compress || name.endsWith(GZIP_SUFFIX))) {
+                fileList.add(file);
+                modified.put(file, file.lastModified());
+            }
+        }
+        // newest first
+        Collections.sort(fileList, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return modified.get(b).compareTo(modified.get(a));
+            }
+        });
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File file : fileList) {
+            total += file.length();
+            boolean tooBig = (maxTotalSize > 0) && (total > maxTotalSize);
+            boolean tooOld = (maxAge > 0) && ((now - modified.get(file)) > maxAge);
+            if (tooBig || tooOld) {
+                if (file.delete()) {
+                    deleteIndex(file);
+                } else {
+                    errorManager.error("Unable to delete " + file, null, ErrorManager.GENERIC_FAILURE);
+                }
+            }
+        }
+    }
+
+}
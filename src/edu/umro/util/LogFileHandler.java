@@ -17,15 +17,97 @@ package edu.umro.util;
  */
 
 import java.io.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.Formatter;
 import java.util.logging.*;
 
 /**
  * Wrap the <code>FileHandler</code> constructors so that they
  * all use the <code>LogFormatter</code> as their default.
  * <p>
- * My personal opinion is that this is a bug in java.util.logging,
- * that it does not allow you to set the formatter in the logging.properties
- * file to your own custom formatter.
+ * A different formatter can be named in the logging properties, and is
+ * loaded by the class loader of this class:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.formatter = edu.umro.util.JsonLogFormatter
+ * </pre>
+ * Records formatted by <code>JsonLogFormatter</code> are encoded straight
+ * into bytes and written to the file without making a string of them, as
+ * long as the encoding is UTF-8 and <code>FileHandler</code>'s own
+ * <code>limit</code> is not used.
+ * <p>
+ * The handler can optionally write asynchronously.  Records are then put in a
+ * bounded lock-free queue by the logging threads and formatted and written to
+ * disk by a single background thread, so that a slow disk does not stall the
+ * caller.  Asynchronous mode is enabled with these logging properties:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.async = true
+ *     edu.umro.util.LogFileHandler.queueSize = 8192
+ *     edu.umro.util.LogFileHandler.overflowPolicy = BLOCK
+ * </pre>
+ * or by calling <code>enableAsync</code>.  Records still queued are written
+ * when the handler is closed or the JVM shuts down.
+ * <p>
+ * The handler can also roll the log file over at a size limit or at the start
+ * of each hour or day.  The file is renamed by appending the time that it was
+ * started, such as <code>service.log.2012-06-01</code>, and a new file is
+ * started.  Rolled files are compressed with gzip, and the oldest are deleted
+ * to keep within the total size and age limits, on a low priority background
+ * thread.  Rolling is enabled with these logging properties:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.rollInterval = DAILY
+ *     edu.umro.util.LogFileHandler.rollSize = 104857600
+ *     edu.umro.util.LogFileHandler.compress = true
+ *     edu.umro.util.LogFileHandler.maxTotalSize = 10737418240
+ *     edu.umro.util.LogFileHandler.maxAgeHours = 720
+ * </pre>
+ * or by calling <code>enableRolling</code>, where sizes are in bytes and a
+ * limit of 0 means there is no limit.  When rolling, the <code>pattern</code>
+ * must name a single file, without <code>%g</code> or <code>%u</code>, or
+ * rolling is not enabled, since the file that <code>FileHandler</code> chose
+ * for them may be one of several.  <code>FileHandler</code>'s own
+ * <code>limit</code> should not be used.
+ * <p>
+ * <code>FileHandler</code> flushes the file after every record.  Instead,
+ * records can be committed in groups: output is collected in a large buffer
+ * and flushed after a number of records, after an interval, or immediately
+ * for records at or above a level.  Records that have not been flushed are
+ * flushed when the JVM shuts down.  Group commit is enabled with these
+ * logging properties:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.flushRecords = 256
+ *     edu.umro.util.LogFileHandler.flushInterval = 1000
+ *     edu.umro.util.LogFileHandler.flushLevel = SEVERE
+ * </pre>
+ * or by calling <code>enableGroupCommit</code>, where the interval is in
+ * milliseconds and a count or interval of 0 is not used.
+ * <p>
+ * Statistics such as the number of records at each level, bytes written and
+ * publish latency can be gathered and registered as a JMX MBean (see
+ * <code>LogMetrics</code>) with this logging property:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.metrics = true
+ * </pre>
+ * or by calling <code>enableMetrics</code>.
+ * <p>
+ * All threads writing to one file contend for the handler's lock.  To avoid
+ * that, records can be divided among several shards, each a handler of its
+ * own with its own file, lock, buffer and formatter, chosen by the thread or
+ * logger of the record.  The shard files are named by appending <code>.shard</code> and the
+ * shard number to the pattern, and the file named by the pattern itself is
+ * left empty.  Each shard is rolled over, committed in groups and written
+ * asynchronously as configured by the properties above, and its records are
+ * in the order they were written.  <code>LogShardMerger</code> merges the
+ * shard files back into sequence number order.  Sharding is enabled with
+ * these logging properties:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.shards = 8
+ *     edu.umro.util.LogFileHandler.shardKey = THREAD
+ * </pre>
+ * or by calling <code>enableSharding</code>.
  *
  * @author Jim Irrer  irrer@umich.edu
  */
@@ -33,10 +115,1226 @@ import java.util.logging.*;
 public class LogFileHandler extends FileHandler {
 
     /**
-     * Set the default formatter to a <code>LogFormatter</code>.
+     * What to do with a record when the asynchronous queue is full.
+     */
+    public static enum OverflowPolicy {
+        /** Wait for the writer to make room. */
+        BLOCK,
+        /** Discard records below <code>WARNING</code>, and wait for room for the rest. */
+        DROP_LOW_LEVELS,
+        /** Discard the record being published. */
+        DROP_NEWEST
+    }
+
+    /**
+     * What decides the shard that a record is written to.
+     */
+    public static enum ShardKey {
+        /** The thread that logged the record, so that each thread's records stay in one file. */
+        THREAD,
+        /** The name of the logger, so that each logger's records stay in one file. */
+        LOGGER
+    }
+
+    /**
+     * How often the log file is rolled over regardless of its size.
+     */
+    public static enum RollInterval {
+        /** Only roll over at the size limit. */
+        NONE("yyyy-MM-dd-HHmmss", 0),
+        /** Roll over at the start of each hour. */
+        HOURLY("yyyy-MM-dd-HH", Calendar.HOUR_OF_DAY),
+        /** Roll over at midnight. */
+        DAILY("yyyy-MM-dd", Calendar.DAY_OF_MONTH);
+
+        /**
+         * Format of the time appended to the names of rolled files.
+         */
+        private final String nameFormat;
+
+        /**
+         * Calendar field that is incremented to get the next roll over time.
+         */
+        private final int field;
+
+        RollInterval(String nameFormat, int field) {
+            this.nameFormat = nameFormat;
+            this.field = field;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the log file for the statistics, when they are gathered.
+     */
+    private class MeteredOutputStream extends FilterOutputStream {
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            LogMetrics m = metrics;
+            if (m != null) {
+                m.written(1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            LogMetrics m = metrics;
+            if (m != null) {
+                m.written(len);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written to the log file so that it can be rolled over by size.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long written;
+
+        CountingOutputStream(OutputStream out, long written) {
+            super(out);
+            this.written = written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    /**
+     * Size of the buffer that output is collected in between flushes.
+     */
+    private static final int FLUSH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Output stream that discards everything, used while the log file is renamed.
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Default number of records held by the asynchronous queue.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    /**
+     * Records below this level are discarded by <code>OverflowPolicy.DROP_LOW_LEVELS</code>.
+     */
+    private static final int LOW_LEVEL_LIMIT = Level.WARNING.intValue();
+
+    /**
+     * Longest time the writer waits before checking for records again.
+     */
+    private static final long IDLE_PARK_NANOS = 100L * 1000 * 1000;
+
+    /**
+     * Time a blocked producer waits before trying again to queue a record.
+     */
+    private static final long FULL_PARK_NANOS = 50L * 1000;
+
+    /**
+     * Queue of records waiting to be written.  Null unless asynchronous.
+     */
+    private volatile LogRingBuffer queue;
+
+    /**
+     * Overflow policy of the asynchronous queue.
+     */
+    private volatile OverflowPolicy overflowPolicy;
+
+    /**
+     * Thread that writes queued records.
+     */
+    private volatile Thread writer;
+
+    /**
+     * True while the writer is waiting for records.
+     */
+    private volatile boolean writerIdle;
+
+    /**
+     * Set when the handler is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Set by <code>close</code> once the writer has stopped and it starts
+     * writing the records left in the queue.  A record queued after this must
+     * be written by the thread that queued it.
+     */
+    private volatile boolean draining = false;
+
+    /**
+     * Set once the file has been closed.  Guarded by the handler's lock.
+     */
+    private boolean fileClosed = false;
+
+    /**
+     * Closes the handler when the JVM shuts down, while asynchronous.
+     */
+    private Thread closeHook;
+
+    /**
+     * Number of records discarded because the queue was full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    /**
+     * File name pattern given to the constructor.
+     */
+    private String pattern;
+
+    /**
+     * Stream to the log file when rolling, otherwise null.
+     */
+    private volatile CountingOutputStream rollStream;
+
+    private RollInterval rollInterval;
+    private long rollSize;
+
+    /**
+     * Log file being written when rolling.
+     */
+    private File rollFile;
+
+    /**
+     * Time at which the current log file was started.
+     */
+    private long rollFileStart;
+
+    /**
+     * Time at which the log file is next rolled over.
+     */
+    private long nextRollTime;
+
+    /**
+     * True while records are discarded because the log file could not be
+     * opened again after it was rolled over.
+     */
+    private boolean rollFileLost = false;
+
+    /**
+     * Time before which a failed roll over is not tried again.
+     */
+    private long rollRetryTime = 0;
+
+    /**
+     * Compresses and deletes rolled files.
+     */
+    private LogArchiver archiver;
+
+    /**
+     * Time to wait before trying again to roll over the log file after failing to.
+     */
+    private static final long ROLL_RETRY_INTERVAL = 60 * 1000;
+
+    /**
+     * Number of times the log file has been rolled over.
+     */
+    private volatile long rollCount = 0;
+
+    /**
+     * True if records are flushed in groups.
+     */
+    private volatile boolean groupCommit = false;
+
+    private int flushRecords;
+    private long flushInterval;
+    private int flushLevelValue;
+
+    /**
+     * Flushes records that have waited for the flush interval, or null.
+     */
+    private Thread flusher;
+
+    /**
+     * Flushes the file when the JVM shuts down, while committing in groups.
+     */
+    private Thread flushHook;
+
+    /**
+     * True while a record is being written by <code>FileHandler.publish</code>,
+     * which flushes after every record.
+     */
+    private boolean publishing = false;
+
+    /**
+     * Level of the record being written.
+     */
+    private int publishingLevelValue;
+
+    /**
+     * Number of records written since the last flush.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * Time of the last flush.
+     */
+    private long lastFlush = 0;
+
+    /**
+     * Statistics, or null if they are not gathered.
+     */
+    private volatile LogMetrics metrics = null;
+
+    /**
+     * Record being written that was already checked when it was queued.
+     */
+    private LogRecord checkedRecord = null;
+
+    /**
+     * Set by <code>isLoggable</code> to whether the record being written was accepted.
+     */
+    private boolean publishAccepted;
+
+    /**
+     * Handlers that records are divided among, or null if not sharded.
+     */
+    private volatile LogFileHandler[] shards = null;
+
+    private ShardKey shardKey = ShardKey.THREAD;
+
+    /**
+     * True if this handler is a shard of another.
+     */
+    private boolean isShard = false;
+
+    /**
+     * Stream that records are written to, wrapping the log file.  Set by
+     * <code>setOutputStream</code>, which is first called by the
+     * <code>FileHandler</code> constructor, so it has no initializer.
+     */
+    private OutputStream fileStream;
+
+    /**
+     * True if the encoding is UTF-8.  Set by <code>setEncoding</code>, which
+     * is first called by the <code>FileHandler</code> constructor, so it has
+     * no initializer.
+     */
+    private boolean isUtf8;
+
+    /**
+     * True if records may be encoded by the formatter straight into the file.
+     * Not done when <code>FileHandler</code> rotates files by size, because it
+     * only measures them when it writes the record itself.
+     */
+    private boolean directWritable = false;
+
+    /**
+     * Set the default formatter to a <code>LogFormatter</code> unless another
+     * is configured, and start rolling or writing asynchronously if configured to.
+     *
+     * @param pattern File name pattern given to the constructor, or null if the default was used.
+     * @param limit   Size at which <code>FileHandler</code> rotates files, or 0 if it does not.
+     */
+    private void initialize(String pattern, int limit) {
+        LogProperties properties = new LogProperties(getClass());
+        initializeFormatter(properties.getString("formatter", null));
+        directWritable = (limit <= 0);
+        this.pattern = (pattern == null) ? properties.getString("pattern", "%h/java%u.log") : pattern;
+        int shardCount = isShard ? 0 : properties.getInt("shards", 0);
+        if (shardCount > 1) {
+            try {
+                enableSharding(shardCount, properties.getEnum("shardKey", ShardKey.class, ShardKey.THREAD));
+            } catch (IOException ex) {
+                reportError("Unable to open log file shards", ex, ErrorManager.OPEN_FAILURE);
+            }
+        }
+        if (shards == null) {
+            initializeWriting(properties);
+        }
+        if (!isShard && properties.getBoolean("metrics", false)) {
+            enableMetrics();
+        }
+    }
+
+
+    /**
+     * Use the formatter named in the logging properties, or a <code>LogFormatter</code>
+     * if none is named.  <code>FileHandler</code> has already set the named
+     * formatter if the system class loader could load it.
+     *
+     * @param formatterName Class name of the formatter, or null if none is configured.
+     */
+    private void initializeFormatter(String formatterName) {
+        if (formatterName == null) {
+            setFormatter(new LogFormatter());
+            return;
+        }
+        Formatter formatter = getFormatter();
+        if ((formatter != null) && formatter.getClass().getName().equals(formatterName)) {
+            return;
+        }
+        try {
+            setFormatter((Formatter) Class.forName(formatterName, true, LogFileHandler.class.getClassLoader()).newInstance());
+        } catch (Exception ex) {
+            reportError("Unable to create formatter " + formatterName, ex, ErrorManager.GENERIC_FAILURE);
+            setFormatter(new LogFormatter());
+        }
+    }
+
+
+    /**
+     * Start rolling, group commit and writing asynchronously if configured to.
+     */
+    private void initializeWriting(LogProperties properties) {
+        RollInterval interval = properties.getEnum("rollInterval", RollInterval.class, RollInterval.NONE);
+        long size = properties.getLong("rollSize", 0);
+        if ((interval != RollInterval.NONE) || (size > 0)) {
+            try {
+                enableRolling(interval, size, properties.getBoolean("compress", true),
+                        properties.getLong("maxTotalSize", 0), properties.getLong("maxAgeHours", 0) * 60 * 60 * 1000);
+            } catch (IOException ex) {
+                reportError("Unable to roll log file", ex, ErrorManager.OPEN_FAILURE);
+            }
+        }
+        int groupRecords = properties.getInt("flushRecords", 1);
+        long groupInterval = properties.getLong("flushInterval", 0);
+        if ((groupRecords > 1) || (groupInterval > 0)) {
+            enableGroupCommit(groupRecords, groupInterval, properties.getLevel("flushLevel", Level.SEVERE));
+        }
+        if (properties.getBoolean("async", false)) {
+            enableAsync(properties.getInt("queueSize", DEFAULT_QUEUE_SIZE),
+                    properties.getEnum("overflowPolicy", OverflowPolicy.class, OverflowPolicy.BLOCK));
+        }
+    }
+
+
+    /**
+     * Start dividing records among shards, each writing its own file.  Each
+     * shard rolls over, commits in groups and writes asynchronously as set by
+     * the logging properties, and calls to <code>enableRolling</code>,
+     * <code>enableGroupCommit</code> and <code>enableAsync</code> on this
+     * handler are passed on to the shards.  Has no effect if the handler is
+     * already sharded, rolling or asynchronous.
+     *
+     * @param count Number of shards.
+     * @param key   What decides the shard of a record.
+     * @throws IOException If a shard file can not be opened.
+     */
+    public synchronized void enableSharding(int count, ShardKey key) throws IOException {
+        if ((shards != null) || (rollStream != null) || (queue != null) || closed || isShard || (count < 2)) {
+            return;
+        }
+        LogFileHandler[] shardList = new LogFileHandler[count];
+        try {
+            for (int s = 0; s < count; s++) {
+                shardList[s] = new LogFileHandler(pattern + ".shard" + s, this);
+            }
+        } catch (IOException ex) {
+            for (LogFileHandler shard : shardList) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            throw ex;
+        }
+        shardKey = key;
+        shards = shardList;
+        // release the file named by the pattern, which is not used
+        setOutputStream(DISCARD);
+    }
+
+
+    /**
+     * Get the shard that a record is written to.
+     */
+    private LogFileHandler shard(LogFileHandler[] shardList, LogRecord record) {
+        int hash;
+        if (shardKey == ShardKey.LOGGER) {
+            String name = record.getLoggerName();
+            hash = (name == null) ? 0 : name.hashCode();
+            hash ^= hash >>> 16;
+        } else {
+            hash = record.getThreadID();
+        }
+        return shardList[(hash & Integer.MAX_VALUE) % shardList.length];
+    }
+
+
+    /**
+     * Set the formatter of this handler.  Each shard is given a new formatter
+     * of the same class.
+     *
+     * @param formatter Formats records.
+     */
+    @Override
+    public synchronized void setFormatter(Formatter formatter) throws SecurityException {
+        // text already formatted must reach the file before records that bypass the writer
+        super.flush();
+        super.setFormatter(formatter);
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                shard.setFormatter(shardFormatter(formatter));
+            }
+        }
+    }
+
+
+    /**
+     * Get a formatter for a shard of the same class as the given one, so that
+     * shards formatting records at the same time do not share its state.  A
+     * formatter that can not be constructed without arguments is shared, and
+     * must then be safe to use from several threads.
+     *
+     * @param formatter Formatter of the handler.
+     * @return Formatter for the shard.
+     */
+    private static Formatter shardFormatter(Formatter formatter) {
+        try {
+            return formatter.getClass().newInstance();
+        } catch (Exception ex) {
+            return formatter;
+        }
+    }
+
+
+    /**
+     * Start gathering statistics and register them as an MBean named by the
+     * file name pattern.  Has no effect if statistics are already gathered.
+     *
+     * @return Statistics.
+     */
+    public synchronized LogMetrics enableMetrics() {
+        if ((metrics == null) && !isShard) {
+            LogMetrics m = new LogMetrics(this);
+            try {
+                m.register(pattern);
+            } catch (Exception ex) {
+                reportError("Unable to register logging MBean", ex, ErrorManager.GENERIC_FAILURE);
+            }
+            metrics = m;
+            LogFileHandler[] shardList = shards;
+            if (shardList != null) {
+                for (LogFileHandler shard : shardList) {
+                    shard.metrics = m;
+                }
+            }
+        }
+        return metrics;
+    }
+
+
+    /**
+     * Get the statistics.
+     *
+     * @return Statistics, or null if they are not gathered.
      */
-    private void initialize() {
-        setFormatter(new LogFormatter());
+    public LogMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Start flushing records in groups instead of after each record.  Has no
+     * effect if records are already flushed in groups.
+     *
+     * @param records  Flush after this many records, or 0 to not flush by count.
+     * @param interval Flush records that are this many milliseconds old, or 0 to not flush by time.
+     * @param level    Flush immediately after records at or above this level.
+     */
+    public synchronized void enableGroupCommit(int records, long interval, Level level) {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                shard.enableGroupCommit(records, interval, level);
+            }
+            return;
+        }
+        if (groupCommit || closed) {
+            return;
+        }
+        flushRecords = Math.max(0, records);
+        flushInterval = Math.max(0, interval);
+        flushLevelValue = level.intValue();
+        lastFlush = System.currentTimeMillis();
+        groupCommit = true;
+
+        if (flushInterval > 0) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushPeriodically();
+                }
+            }, getClass().getSimpleName() + " flush");
+            thread.setDaemon(true);
+            flusher = thread;
+            thread.start();
+        }
+
+        flushHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, getClass().getSimpleName() + " flush on shutdown");
+        Runtime.getRuntime().addShutdownHook(flushHook);
+    }
+
+
+    /**
+     * Collect output in a large buffer so that it is written in large blocks
+     * when records are flushed in groups, count the bytes written, and make
+     * the formatter write stack traces in full again.  This is called by <code>FileHandler</code>
+     * each time it opens a file, including from its constructor.
+     *
+     * @param out Stream to the log file.
+     */
+    @Override
+    protected synchronized void setOutputStream(OutputStream out) {
+        OutputStream stream = (out == DISCARD) ? out : new MeteredOutputStream(new BufferedOutputStream(out, FLUSH_BUFFER_SIZE));
+        super.setOutputStream(stream);
+        fileStream = stream;
+        // references to traces written in the previous file would point at nothing
+        LogFormatter.forgetTraces(getFormatter());
+    }
+
+
+    /**
+     * Set the encoding of the log file, and note whether records can be
+     * written in UTF-8 without going through a <code>Writer</code>.
+     *
+     * @param encoding Name of the character set, or null for the platform default.
+     */
+    @Override
+    public synchronized void setEncoding(String encoding) throws SecurityException, UnsupportedEncodingException {
+        super.setEncoding(encoding);
+        Charset charset = (encoding == null) ? Charset.defaultCharset() : Charset.forName(encoding);
+        isUtf8 = StandardCharsets.UTF_8.equals(charset);
+    }
+
+
+    /**
+     * Flush buffered output to the file.  When records are flushed in groups,
+     * the flush that <code>FileHandler</code> does after each record is only
+     * done when the group is complete.
+     */
+    @Override
+    public synchronized void flush() {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                shard.flush();
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (publishing && groupCommit) {
+            pendingCount++;
+            boolean full = (flushRecords > 0) && (pendingCount >= flushRecords);
+            boolean old = (flushInterval > 0) && ((now - lastFlush) >= flushInterval);
+            if (!full && !old && (publishingLevelValue < flushLevelValue)) {
+                return;
+            }
+        }
+        super.flush();
+        pendingCount = 0;
+        lastFlush = now;
+        LogMetrics m = metrics;
+        if (m != null) {
+            m.flushed();
+        }
+    }
+
+
+    /**
+     * Body of the flush thread.  Flush records that have waited for the flush interval.
+     */
+    private void flushPeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            synchronized (this) {
+                if ((pendingCount > 0) && ((System.currentTimeMillis() - lastFlush) >= flushInterval)) {
+                    flush();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Start rolling the log file over by time or size.  Has no effect if the
+     * handler is already rolling.
+     *
+     * @param interval     How often to roll over.
+     * @param size         Size in bytes at which to roll over, or 0 to only roll over by time.
+     * @param compress     If true, compress rolled files.
+     * @param maxTotalSize Largest total size in bytes of rolled files, or 0 for no limit.
+     * @param maxAge       Longest time in milliseconds to keep a rolled file, or 0 for no limit.
+     * @throws IOException If the log file can not be opened, or the pattern contains <code>%u</code> or <code>%g</code>.
+     */
+    public synchronized void enableRolling(RollInterval interval, long size, boolean compress, long maxTotalSize, long maxAge)
+            throws IOException {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                shard.enableRolling(interval, size, compress, maxTotalSize, maxAge);
+            }
+            return;
+        }
+        if ((rollStream != null) || closed) {
+            return;
+        }
+        String unescaped = pattern.replace("%%", "");
+        if (unescaped.contains("%u") || unescaped.contains("%g")) {
+            // FileHandler may have opened another unit or generation than 0,
+            // which could leave this handler rolling a file another process writes
+            throw new IOException("Log file can not be rolled over because its pattern contains %u or %g: " + pattern);
+        }
+        rollFile = LogProperties.expandPattern(pattern).getAbsoluteFile();
+        rollInterval = interval;
+        rollSize = size;
+        archiver = new LogArchiver(rollFile, interval.nameFormat, compress, maxTotalSize, maxAge, getErrorManager());
+
+        long now = System.currentTimeMillis();
+        if ((rollFile.length() > 0) && (rollFile.lastModified() < periodStart(now))) {
+            // the existing file belongs to an earlier period
+            rename(rollFile.lastModified());
+        }
+        openRollFile(now);
+        archiver.schedule();
+    }
+
+
+    /**
+     * Get the start of the roll over period containing the given time.
+     */
+    private long periodStart(long time) {
+        if (rollInterval == RollInterval.NONE) {
+            return Long.MIN_VALUE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        if (rollInterval == RollInterval.DAILY) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        return calendar.getTimeInMillis();
+    }
+
+
+    /**
+     * Get the time at which the period after the one containing the given time starts.
+     */
+    private long nextPeriodStart(long time) {
+        if (rollInterval == RollInterval.NONE) {
+            return Long.MAX_VALUE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(periodStart(time));
+        calendar.add(rollInterval.field, 1);
+        return calendar.getTimeInMillis();
+    }
+
+
+    /**
+     * Open the log file for appending and direct output to it.
+     */
+    private void openRollFile(long now) throws IOException {
+        File parent = rollFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        rollStream = new CountingOutputStream(new FileOutputStream(rollFile, true), rollFile.length());
+        setOutputStream(rollStream);
+        rollFileStart = (rollFile.length() == 0) ? now : Math.min(now, rollFile.lastModified());
+        nextRollTime = nextPeriodStart(now);
+    }
+
+
+    /**
+     * Rename the log file, and its index if it has one, naming it by the given start time.
+     *
+     * @return True if the file was renamed.
+     */
+    private boolean rename(long start) {
+        String name = rollFile.getPath() + "." + new SimpleDateFormat(rollInterval.nameFormat).format(new Date(start));
+        File rolled = new File(name);
+        for (int n = 1; rolled.exists() || new File(rolled.getPath() + LogArchiver.GZIP_SUFFIX).exists(); n++) {
+            rolled = new File(name + "." + n);
+        }
+        if (!rollFile.renameTo(rolled)) {
+            reportError("Unable to rename " + rollFile + " to " + rolled, null, ErrorManager.GENERIC_FAILURE);
+            return false;
+        }
+        // the index describes the file's contents, so it stays valid under the new name
+        File index = LogIndex.indexFile(rollFile);
+        if (index.exists()) {
+            index.renameTo(LogIndex.indexFile(rolled));
+        }
+        return true;
+    }
+
+
+    /**
+     * Roll the log file over if its period has ended or it has reached the size
+     * limit.  If renaming or opening the log file fails, the error is reported
+     * once and the roll over is not tried again for a while, rather than for
+     * every record.  Records are discarded while the log file can not be opened.
+     */
+    private void rollIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (now < rollRetryTime) {
+            return;
+        }
+        boolean rolled = true;
+        if (!rollFileLost) {
+            if ((now < nextRollTime) && ((rollSize <= 0) || (rollStream.written < rollSize))) {
+                return;
+            }
+            // release the file so that it can be renamed
+            setOutputStream(DISCARD);
+            rolled = rename(rollFileStart);
+        }
+        try {
+            openRollFile(now);
+            rollFileLost = false;
+        } catch (IOException ex) {
+            reportError("Unable to open " + rollFile, ex, ErrorManager.OPEN_FAILURE);
+            rollFileLost = true;
+            rolled = false;
+        }
+        if (rolled) {
+            rollRetryTime = 0;
+            rollCount++;
+            archiver.schedule();
+        } else {
+            rollRetryTime = now + ROLL_RETRY_INTERVAL;
+        }
+    }
+
+
+    /**
+     * Get the number of times the log file has been rolled over.
+     *
+     * @return Number of roll overs.
+     */
+    public long getRollCount() {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            long count = 0;
+            for (LogFileHandler shard : shardList) {
+                count += shard.getRollCount();
+            }
+            return count;
+        }
+        return rollCount;
+    }
+
+
+    /**
+     * Start writing records on a background thread.  Has no effect if the
+     * handler is already asynchronous.
+     *
+     * @param queueSize      Number of records that may be waiting to be written.
+     * @param overflowPolicy What to do when the queue is full.
+     */
+    public synchronized void enableAsync(int queueSize, OverflowPolicy overflowPolicy) {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                shard.enableAsync(queueSize, overflowPolicy);
+            }
+            return;
+        }
+        if ((queue != null) || closed) {
+            return;
+        }
+        this.overflowPolicy = overflowPolicy;
+        queue = new LogRingBuffer(queueSize);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeQueue();
+            }
+        }, getClass().getSimpleName() + " writer");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+
+        closeHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, getClass().getSimpleName() + " shutdown");
+        Runtime.getRuntime().addShutdownHook(closeHook);
+    }
+
+
+    /**
+     * Determine whether records are written on a background thread.
+     *
+     * @return True if asynchronous.
+     */
+    public boolean isAsync() {
+        LogFileHandler[] shardList = shards;
+        return (shardList != null) ? shardList[0].isAsync() : (queue != null);
+    }
+
+
+    /**
+     * Get the number of records discarded because the asynchronous queue was full.
+     *
+     * @return Number of records dropped.
+     */
+    public long getDroppedCount() {
+        long count = droppedCount.get();
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                count += shard.getDroppedCount();
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Get the number of records waiting to be written.
+     *
+     * @return Number of queued records, or 0 if not asynchronous.
+     */
+    public int getQueueDepth() {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            int depth = 0;
+            for (LogFileHandler shard : shardList) {
+                depth += shard.getQueueDepth();
+            }
+            return depth;
+        }
+        LogRingBuffer q = queue;
+        return (q == null) ? 0 : q.size();
+    }
+
+
+    /**
+     * Publish a record.  When asynchronous, the record is queued and this
+     * returns without waiting for it to be written, unless the queue is full
+     * and the overflow policy says to wait.  When sharded, the record is
+     * checked and passed to its shard.
+     *
+     * @param record Record to publish.
+     */
+    @Override
+    public void publish(LogRecord record) {
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            if (!closed && accepts(record)) {
+                shard(shardList, record).publish(record);
+            }
+            return;
+        }
+        LogMetrics m = metrics;
+        if (m == null) {
+            dispatch(record);
+        } else {
+            long start = System.nanoTime();
+            if (dispatch(record)) {
+                m.published(record.getLevel(), System.nanoTime() - start);
+            }
+        }
+    }
+
+
+    /**
+     * Write or queue a record.
+     *
+     * @param record Record to publish.
+     * @return True if the record was accepted, false if it was rejected or dropped.
+     */
+    private boolean dispatch(LogRecord record) {
+        LogRingBuffer q = queue;
+        if ((q == null) || closed) {
+            return write(record, false);
+        }
+        if (!accepts(record)) {
+            return false;
+        }
+
+        // The source is found by looking at the stack, so it must be done on the calling thread.
+        record.getSourceClassName();
+
+        if (!q.offer(record)) {
+            if ((overflowPolicy == OverflowPolicy.DROP_NEWEST) ||
+                    ((overflowPolicy == OverflowPolicy.DROP_LOW_LEVELS) && (record.getLevel().intValue() < LOW_LEVEL_LIMIT))) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            while (!q.offer(record)) {
+                if (closed) {
+                    return writeUnqueued(record);
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+        }
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+        if (draining) {
+            drainQueue();
+        }
+        return true;
+    }
+
+
+    /**
+     * Check the level and filter of a record.  <code>isLoggable</code> is not
+     * used because it also rejects every record while the output stream is
+     * being replaced, and threads queueing records do not hold the lock.
+     *
+     * @param record Record to check.
+     * @return True if the record should be published.
+     */
+    private boolean accepts(LogRecord record) {
+        int levelValue = getLevel().intValue();
+        if ((record == null) || (record.getLevel().intValue() < levelValue) || (levelValue == Level.OFF.intValue())) {
+            return false;
+        }
+        Filter filter = getFilter();
+        return (filter == null) || filter.isLoggable(record);
+    }
+
+
+    /**
+     * Check a record as it is written.  <code>FileHandler</code> and
+     * <code>StreamHandler</code> both check each record, and records that are
+     * queued were checked when they were queued, so a record that has been
+     * accepted is not checked again.  This way its filter sees it once.
+     *
+     * @param record Record to check.
+     * @return True if the record should be written.
+     */
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        if (publishing && Thread.holdsLock(this)) {
+            if ((record == null) || (record != checkedRecord)) {
+                if (!super.isLoggable(record)) {
+                    publishAccepted = false;
+                    return false;
+                }
+                checkedRecord = record;
+            }
+            publishAccepted = true;
+            return true;
+        }
+        return super.isLoggable(record);
+    }
+
+
+    /**
+     * Write a record to the file on the current thread, first rolling the file
+     * over if needed.  <code>FileHandler</code> holds the same lock while
+     * writing, so holding it here costs nothing more.
+     *
+     * @param record  Record to write.
+     * @param checked True if the level and filter of the record have already been checked.
+     * @return True if the record was accepted.
+     */
+    private synchronized boolean write(LogRecord record, boolean checked) {
+        if (rollStream != null) {
+            rollIfNeeded();
+        }
+        publishing = true;
+        publishingLevelValue = record.getLevel().intValue();
+        publishAccepted = false;
+        checkedRecord = checked ? record : null;
+        try {
+            Formatter formatter = getFormatter();
+            if (directWritable && isUtf8 && (formatter instanceof JsonLogFormatter)) {
+                writeDirect(record, (JsonLogFormatter) formatter);
+            } else {
+                super.publish(record);
+            }
+        } finally {
+            publishing = false;
+            checkedRecord = null;
+        }
+        return publishAccepted;
+    }
+
+
+    /**
+     * Encode a record straight into the file, doing what <code>FileHandler</code>
+     * would do but without making a string of it.
+     */
+    private void writeDirect(LogRecord record, JsonLogFormatter formatter) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        try {
+            formatter.write(record, fileStream);
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.WRITE_FAILURE);
+        }
+        flush();
+    }
+
+
+    /**
+     * Body of the writer thread.  Write records as they are queued until the
+     * handler is closed and the queue is empty.
+     */
+    private void writeQueue() {
+        LogRingBuffer q = queue;
+        while (true) {
+            LogRecord record = q.poll();
+            if (record != null) {
+                write(record, true);
+            } else {
+                if (closed) {
+                    break;
+                }
+                writerIdle = true;
+                if (q.size() == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerIdle = false;
+            }
+        }
+    }
+
+
+    /**
+     * Write the records left in the queue on the calling thread, once the
+     * writer has stopped.  Records are only taken from the queue while
+     * holding the lock, so there is still a single consumer.  Records left
+     * after the file is closed are counted as dropped.
+     */
+    private synchronized void drainQueue() {
+        LogRingBuffer q = queue;
+        LogRecord record;
+        while ((record = q.poll()) != null) {
+            if (fileClosed) {
+                droppedCount.incrementAndGet();
+            } else {
+                write(record, true);
+            }
+        }
+    }
+
+
+    /**
+     * Write a record that could not be queued because the handler is closing,
+     * or count it as dropped if the file has already been closed.
+     *
+     * @param record Record that has been checked.
+     * @return True if the record was written.
+     */
+    private synchronized boolean writeUnqueued(LogRecord record) {
+        if (fileClosed) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return write(record, true);
+    }
+
+
+    /**
+     * Remove a shutdown hook, unless the JVM is already shutting down.
+     *
+     * @param hook Hook to remove, or null.
+     */
+    private static void removeShutdownHook(Thread hook) {
+        if (hook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException ex) {
+                // the JVM is shutting down, and may be running the hook now
+            }
+        }
+    }
+
+
+    /**
+     * Write any queued records, stop the writer, and close the file.
+     */
+    @Override
+    public void close() throws SecurityException {
+        Thread thread;
+        Thread hook;
+        Thread groupHook;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            thread = writer;
+            hook = closeHook;
+            closeHook = null;
+            groupHook = flushHook;
+            flushHook = null;
+            if (flusher != null) {
+                flusher.interrupt();
+                flusher = null;
+            }
+        }
+        removeShutdownHook(hook);
+        removeShutdownHook(groupHook);
+        if ((thread != null) && (thread != Thread.currentThread())) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LogFileHandler[] shardList = shards;
+        if (shardList != null) {
+            for (LogFileHandler shard : shardList) {
+                shard.close();
+            }
+        }
+        synchronized (this) {
+            // a record queued after the writer's last look at the queue is written here
+            if ((queue != null) && ((thread == null) || !thread.isAlive())) {
+                draining = true;
+                drainQueue();
+            }
+            super.close();
+            fileClosed = true;
+            if (archiver != null) {
+                archiver.shutdown();
+            }
+        }
+        LogMetrics m = metrics;
+        if (m != null) {
+            try {
+                m.unregister();
+            } catch (Exception ex) {
+                reportError("Unable to unregister logging MBean", ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
     }
 
 
@@ -48,7 +1346,7 @@ public class LogFileHandler extends FileHandler {
      */
     public LogFileHandler() throws SecurityException, IOException {
         super();
-        initialize();
+        initialize(null, new LogProperties(getClass()).getInt("limit", 0));
     }
 
 
@@ -61,7 +1359,7 @@ public class LogFileHandler extends FileHandler {
      */
     public LogFileHandler(String pattern) throws SecurityException, IOException {
         super(pattern);
-        initialize();
+        initialize(pattern, 0);
     }
 
 
@@ -75,7 +1373,7 @@ public class LogFileHandler extends FileHandler {
      */
     public LogFileHandler(String pattern, boolean append) throws SecurityException, IOException {
         super(pattern, append);
-        initialize();
+        initialize(pattern, 0);
     }
 
 
@@ -90,7 +1388,7 @@ public class LogFileHandler extends FileHandler {
      */
     public LogFileHandler(String pattern, int limit, int count) throws SecurityException, IOException {
         super(pattern, limit, count);
-        initialize();
+        initialize(pattern, limit);
     }
 
 
@@ -106,7 +1404,27 @@ public class LogFileHandler extends FileHandler {
      */
     public LogFileHandler(String pattern, int limit, int count, boolean append) throws SecurityException, IOException {
         super(pattern, limit, count, append);
-        initialize();
+        initialize(pattern, limit);
+    }
+
+
+    /**
+     * Construct a shard of a handler.  It writes every record given to it,
+     * since the handler has already checked the level and filter.
+     *
+     * @param pattern Name of the shard file.
+     * @param parent  Handler that the shard belongs to.
+     * @throws IOException
+     * @throws SecurityException
+     */
+    private LogFileHandler(String pattern, LogFileHandler parent) throws SecurityException, IOException {
+        super(pattern, 0, 1, new LogProperties(LogFileHandler.class).getBoolean("append", false));
+        isShard = true;
+        initialize(pattern, 0);
+        setFormatter(shardFormatter(parent.getFormatter()));
+        setLevel(Level.ALL);
+        setFilter(null);
+        metrics = parent.metrics;
     }
 
 }
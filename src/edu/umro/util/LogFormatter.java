@@ -16,7 +16,6 @@ package edu.umro.util;
  * limitations under the License.
  */
 
-import java.io.*;
 import java.text.*;
 import java.util.*;
 import java.util.logging.Formatter;
@@ -24,32 +23,202 @@ import java.util.logging.*;
 
 /**
  * This custom formatter formats parts of a log record to a single line
+ * <p>
+ * Each thread formats into its own reusable buffer, and the date and time
+ * up to the second is only rendered once per second, so formatting a record
+ * allocates little more than the returned string.  The columns are:
+ * <pre>
+ *     level(7) date(24) message(80)  source(40) Seq:sequence Thread:thread
+ * </pre>
+ * where the date is of the form <code>yyyy/MM/dd HH:mm:ss.SSS</code> and
+ * each column is padded on the right with blanks to at least the given width.
+ * The message is formatted with its parameters, if it has any.  If the record
+ * has a throwable, it and its stack trace follow on lines of their own, in the
+ * form produced by <code>Log.fmtEx</code>.  If stack trace deduplication is
+ * enabled (see <code>LogTraceCache</code>), a trace that this formatter has
+ * already written is abbreviated to its id.  Each formatter remembers its
+ * own traces, and handlers that start a new file call
+ * <code>forgetTraces</code>, so that the full trace is always in the same
+ * file as its references.
  *
  * @author Jim Irrer  irrer@umich.edu
  */
 class LogFormatter extends Formatter {
 
-    private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:SS.sss");
+    /**
+     * Format of the part of the time stamp that only changes once a second.
+     */
+    private static final String SECOND_FORMAT = "yyyy/MM/dd HH:mm:ss.";
+
+    /**
+     * A thread's buffer is replaced if a very long message made it larger than this.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    static final int LEVEL_WIDTH = 7;
+    static final int DATE_WIDTH = 24;
+    static final int MESSAGE_WIDTH = 80;
+    static final int SOURCE_WIDTH = 40;
+
+    /**
+     * Formatting state kept for each thread.
+     */
+    private static class State {
+        StringBuilder text = new StringBuilder(256);
+        final SimpleDateFormat secondFormat = new SimpleDateFormat(SECOND_FORMAT);
+        long second = Long.MIN_VALUE;
+        String secondText = null;
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+
+    /**
+     * Traces written by this formatter, or null if deduplication is off.
+     */
+    private final LogTraceCache traceCache = LogTraceCache.newCache();
 
 
     public LogFormatter() {
         super();
     }
 
+    /**
+     * Forget the traces that have been written, so that each is written in
+     * full the next time.  Called when a handler starts a new file.
+     */
+    void forgetTraces() {
+        if (traceCache != null) {
+            traceCache.clear();
+        }
+    }
+
+    /**
+     * Forget the traces written by a handler's formatter, if it remembers them.
+     *
+     * @param formatter Formatter of a handler that is starting a new file.
+     */
+    static void forgetTraces(Formatter formatter) {
+        if (formatter instanceof LogFormatter) {
+            ((LogFormatter) formatter).forgetTraces();
+        }
+    }
+
+    /**
+     * Append blanks until the text has reached the given length.
+     */
+    static void pad(StringBuilder text, int length) {
+        while (text.length() < length) {
+            text.append(' ');
+        }
+    }
+
+    /**
+     * Append a time stamp of the form <code>yyyy/MM/dd HH:mm:ss.SSS</code>.
+     *
+     * @param state  This thread's state.
+     * @param millis Time in milliseconds since the epoch.
+     * @param text   Destination.
+     */
+    private static void appendTime(State state, long millis, StringBuilder text) {
+        long ms = millis % 1000;
+        if (ms < 0) {
+            ms += 1000;
+        }
+        long second = millis - ms;
+        if (second != state.second) {
+            state.secondText = state.secondFormat.format(new Date(second));
+            state.second = second;
+        }
+        text.append(state.secondText);
+        if (ms < 100) {
+            text.append('0');
+        }
+        if (ms < 10) {
+            text.append('0');
+        }
+        text.append(ms);
+    }
+
+    /**
+     * Append a throwable and its stack trace, one frame per line.
+     *
+     * @param throwable Throwable to append.
+     * @param text      Destination.
+     */
+    static void appendThrowable(Throwable throwable, StringBuilder text) {
+        appendThrowable(throwable, text, null);
+    }
+
+    /**
+     * Append a throwable and its stack trace, one frame per line.
+     *
+     * @param throwable Throwable to append.
+     * @param text      Destination.
+     * @param cache     Traces already written, or null to write the trace in full.
+     */
+    static void appendThrowable(Throwable throwable, StringBuilder text, LogTraceCache cache) {
+        if (cache != null) {
+            cache.append(throwable, text, "    ", "");
+            return;
+        }
+        text.append(throwable);
+        for (StackTraceElement ste : throwable.getStackTrace()) {
+            text.append("\n    ").append(ste);
+        }
+    }
+
+    /**
+     * Append a formatted record, including the trailing newline, to the given buffer.
+     *
+     * @param rec  Record to format.
+     * @param text Destination.
+     */
+    void format(LogRecord rec, StringBuilder text) {
+        int start = text.length();
+        text.append(rec.getLevel());
+        pad(text, start + LEVEL_WIDTH);
+        text.append(' ');
+
+        int column = text.length();
+        appendTime(state.get(), rec.getMillis(), text);
+        pad(text, column + DATE_WIDTH);
+        text.append(' ');
+
+        column = text.length();
+        text.append(formatMessage(rec));
+        pad(text, column + MESSAGE_WIDTH);
+        text.append("  ");
+
+        column = text.length();
+        text.append(rec.getSourceClassName()).append('.').append(rec.getSourceMethodName());
+        pad(text, column + SOURCE_WIDTH);
+
+        text.append(" Seq:").append(rec.getSequenceNumber());
+        text.append(" Thread:").append(rec.getThreadID());
+        text.append('\n');
+
+        if (rec.getThrown() != null) {
+            appendThrowable(rec.getThrown(), text, traceCache);
+            text.append('\n');
+        }
+    }
+
     // This method is called for every log records
     public String format(LogRecord rec) {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        PrintStream printStream = new PrintStream(byteArrayOutputStream);
-
-        printStream.format("%-7s %-24s %-80s  %-40s Seq:%d Thread:%d\n",
-                rec.getLevel(),
-                SIMPLE_DATE_FORMAT.format(new Date(rec.getMillis())),
-                rec.getMessage(),
-                rec.getSourceClassName() + "." + rec.getSourceMethodName(),
-                rec.getSequenceNumber(),
-                rec.getThreadID());
-
-        return byteArrayOutputStream.toString();
+        State st = state.get();
+        if (st.text.capacity() > MAX_RETAINED_CAPACITY) {
+            st.text = new StringBuilder(256);
+        }
+        StringBuilder text = st.text;
+        text.setLength(0);
+        format(rec, text);
+        return text.toString();
     }
 
 
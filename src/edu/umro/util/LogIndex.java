@@ -0,0 +1,394 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * An index of a file written with <code>LogFormatter</code>, used by
+ * <code>LogReader</code> to find records by time and level without reading
+ * the whole file.
+ * <p>
+ * The file is divided into blocks of about <code>BLOCK_SIZE</code> bytes,
+ * each starting at the beginning of a record.  For each block the index holds
+ * its offset, the earliest and latest time of its records, and a bitmap of
+ * the levels of its records.  A query only reads the blocks whose times
+ * overlap the time range and whose bitmap has a wanted level.
+ * <p>
+ * The index is kept in a hidden file next to the log file, named by putting a
+ * period before and <code>.idx</code> after the log file name, so that it is
+ * not taken for a rolled file.  Along with the blocks it holds the length of
+ * the file that was indexed and the first bytes of the file.  When the log
+ * file has grown, only the new part and the last block are indexed again.
+ * When the first bytes differ the file has been replaced, and it is indexed
+ * from the start.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class LogIndex {
+
+    /**
+     * Size in bytes after which a new block is started at the next record.
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Number of bytes of the start of the file kept to recognize it.
+     */
+    private static final int FINGERPRINT_SIZE = 256;
+
+    /**
+     * Size of the part of the file mapped at once while indexing.
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final byte[] MAGIC = {'U', 'M', 'R', 'O', 'I', 'D', 'X'};
+
+    private static final int VERSION = 1;
+
+    /**
+     * Levels in the order of their bits.  Records at levels between these are
+     * given the bit of the one below, and records with levels that are not
+     * known are given <code>OTHER_BIT</code>.
+     */
+    private static final Level[] LEVELS = {Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE, Level.FINER, Level.FINEST};
+
+    static final int OTHER_BIT = 1 << LEVELS.length;
+
+    /**
+     * Bits of the standard level names.
+     */
+    private static final HashMap<String, Integer> LEVEL_BITS = new HashMap<String, Integer>();
+
+    static {
+        for (Level level : new Level[]{Level.OFF, Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE, Level.FINER, Level.FINEST, Level.ALL}) {
+            LEVEL_BITS.put(level.getName(), levelBit(level));
+        }
+    }
+
+    /**
+     * Length of the part of the log file that has been indexed.
+     */
+    long indexedLength = 0;
+
+    private byte[] fingerprint = new byte[0];
+
+    int blockCount = 0;
+    long[] blockStart = new long[16];
+    long[] blockMinTime = new long[16];
+    long[] blockMaxTime = new long[16];
+    byte[] blockLevels = new byte[16];
+
+    /**
+     * The time and level of a record header, and a cache for converting times.
+     */
+    static final class Header {
+        long time;
+        int levelBit;
+
+        /**
+         * Text of the last date and minute that was converted, and its time.
+         */
+        private final byte[] minuteText = new byte[16];
+        private long minuteTime = Long.MIN_VALUE;
+        private final Calendar calendar = Calendar.getInstance();
+
+        /**
+         * Parse the header of a record, which is a level name, blanks, and a
+         * time of the form <code>yyyy/MM/dd HH:mm:ss.SSS</code>.
+         *
+         * @param buffer Contents of the file.
+         * @param start  Position of the start of a line.
+         * @param end    Position of the end of the line.
+         * @return True if the line is the first line of a record.
+         */
+        boolean parse(ByteBuffer buffer, int start, int end) {
+            int p = start;
+            while ((p < end) && (buffer.get(p) > ' ')) {
+                p++;
+            }
+            int levelEnd = p;
+            if ((levelEnd == start) || (levelEnd - start > 32)) {
+                return false;
+            }
+            while ((p < end) && (buffer.get(p) == ' ')) {
+                p++;
+            }
+            if ((end - p < 23) || !isDate(buffer, p)) {
+                return false;
+            }
+            boolean same = minuteTime != Long.MIN_VALUE;
+            for (int m = 0; same && (m < minuteText.length); m++) {
+                same = minuteText[m] == buffer.get(p + m);
+            }
+            if (!same) {
+                for (int m = 0; m < minuteText.length; m++) {
+                    minuteText[m] = buffer.get(p + m);
+                }
+                calendar.clear();
+                calendar.set(digits(buffer, p, 4), digits(buffer, p + 5, 2) - 1, digits(buffer, p + 8, 2),
+                        digits(buffer, p + 11, 2), digits(buffer, p + 14, 2), 0);
+                minuteTime = calendar.getTimeInMillis();
+            }
+            time = minuteTime + (digits(buffer, p + 17, 2) * 1000L) + digits(buffer, p + 20, 3);
+
+            char[] name = new char[levelEnd - start];
+            for (int c = 0; c < name.length; c++) {
+                name[c] = (char) (buffer.get(start + c) & 0xff);
+            }
+            Integer bit = LEVEL_BITS.get(new String(name));
+            levelBit = (bit == null) ? OTHER_BIT : bit;
+            return true;
+        }
+
+        private static boolean isDate(ByteBuffer buffer, int p) {
+            String form = "dddd/dd/dd dd:dd:dd.ddd";
+            for (int c = 0; c < form.length(); c++) {
+                byte b = buffer.get(p + c);
+                if ((form.charAt(c) == 'd') ? ((b < '0') || (b > '9')) : (b != form.charAt(c))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int digits(ByteBuffer buffer, int p, int count) {
+            int value = 0;
+            for (int d = 0; d < count; d++) {
+                value = (value * 10) + (buffer.get(p + d) - '0');
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Get the bit of a level.
+     */
+    private static int levelBit(Level level) {
+        for (int l = 0; l < LEVELS.length; l++) {
+            if (level.intValue() >= LEVELS[l].intValue()) {
+                return 1 << l;
+            }
+        }
+        return 1 << (LEVELS.length - 1);
+    }
+
+    /**
+     * Get the bits of the levels at or above a level.  Records whose levels
+     * are not known may be at any level, so <code>OTHER_BIT</code> is included.
+     *
+     * @param minimum Lowest level wanted.
+     * @return Level bitmap.
+     */
+    static int levelMask(Level minimum) {
+        int mask = OTHER_BIT | levelBit(minimum);
+        for (int l = 0; l < LEVELS.length; l++) {
+            if (LEVELS[l].intValue() >= minimum.intValue()) {
+                mask |= 1 << l;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Get the name of the index of a log file.
+     *
+     * @param logFile Log file.
+     * @return Index file.
+     */
+    static File indexFile(File logFile) {
+        return new File(logFile.getAbsoluteFile().getParentFile(), "." + logFile.getName() + ".idx");
+    }
+
+    /**
+     * Get the index of a log file, bringing it up to date with the file and
+     * saving it.  If it can not be saved it is still returned.
+     *
+     * @param logFile Log file.
+     * @param channel Open channel of the log file.
+     * @return Index.
+     * @throws IOException If the log file can not be read.
+     */
+    static LogIndex open(File logFile, FileChannel channel) throws IOException {
+        File file = indexFile(logFile);
+        LogIndex index = null;
+        if (file.isFile()) {
+            try {
+                index = read(file);
+            } catch (IOException ex) {
+                // rebuilt below
+            }
+        }
+        long length = channel.size();
+        byte[] fingerprint = readFingerprint(channel);
+        if ((index == null) || (index.indexedLength > length) ||
+                !Arrays.equals(index.fingerprint, Arrays.copyOf(fingerprint, index.fingerprint.length))) {
+            index = new LogIndex();
+        }
+        if ((index.indexedLength < length) || (index.fingerprint.length < fingerprint.length)) {
+            index.fingerprint = fingerprint;
+            index.update(channel, length);
+            try {
+                index.write(file);
+            } catch (IOException ex) {
+                // the directory may be read only
+            }
+        }
+        return index;
+    }
+
+    private static byte[] readFingerprint(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FINGERPRINT_SIZE, channel.size()));
+        while (buffer.hasRemaining() && (channel.read(buffer, buffer.position()) > 0)) {
+            ;
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Start a block.
+     */
+    private void addBlock(long start) {
+        if (blockCount == blockStart.length) {
+            int size = blockCount * 2;
+            blockStart = Arrays.copyOf(blockStart, size);
+            blockMinTime = Arrays.copyOf(blockMinTime, size);
+            blockMaxTime = Arrays.copyOf(blockMaxTime, size);
+            blockLevels = Arrays.copyOf(blockLevels, size);
+        }
+        blockStart[blockCount] = start;
+        blockMinTime[blockCount] = Long.MAX_VALUE;
+        blockMaxTime[blockCount] = Long.MIN_VALUE;
+        blockLevels[blockCount] = 0;
+        blockCount++;
+    }
+
+    /**
+     * Get the offset of the end of a block.
+     *
+     * @param block Index of block.
+     * @return Offset just past the block.
+     */
+    long blockEnd(int block) {
+        return (block + 1 < blockCount) ? blockStart[block + 1] : indexedLength;
+    }
+
+    /**
+     * Index the complete lines between the last block and the end of the file.
+     */
+    private void update(FileChannel channel, long length) throws IOException {
+        long position = 0;
+        if (blockCount > 0) {
+            // the last block may not be full, so it is indexed again
+            blockCount--;
+            position = blockStart[blockCount];
+        }
+        Header header = new Header();
+        while (position < length) {
+            int size = (int) Math.min(WINDOW_SIZE, length - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            int lineStart = 0;
+            int p = 0;
+            while (p < size) {
+                if (buffer.get(p) != '\n') {
+                    p++;
+                    continue;
+                }
+                long offset = position + lineStart;
+                boolean isHeader = header.parse(buffer, lineStart, p);
+                if ((blockCount == 0) || (isHeader && (offset - blockStart[blockCount - 1] >= BLOCK_SIZE))) {
+                    addBlock(offset);
+                }
+                if (isHeader) {
+                    int b = blockCount - 1;
+                    blockMinTime[b] = Math.min(blockMinTime[b], header.time);
+                    blockMaxTime[b] = Math.max(blockMaxTime[b], header.time);
+                    blockLevels[b] |= header.levelBit;
+                }
+                lineStart = ++p;
+            }
+            if (lineStart == 0) {
+                if (size == WINDOW_SIZE) {
+                    throw new IOException("Log file has a line longer than " + WINDOW_SIZE + " bytes");
+                }
+                // an incomplete line at the end of the file is left for the next update
+                break;
+            }
+            position += lineStart;
+        }
+        indexedLength = position;
+    }
+
+    private static LogIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Not a log index");
+            }
+            LogIndex index = new LogIndex();
+            index.fingerprint = new byte[in.readUnsignedShort()];
+            in.readFully(index.fingerprint);
+            index.indexedLength = in.readLong();
+            int count = in.readInt();
+            for (int b = 0; b < count; b++) {
+                index.addBlock(in.readLong());
+                index.blockMinTime[b] = in.readLong();
+                index.blockMaxTime[b] = in.readLong();
+                index.blockLevels[b] = in.readByte();
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the index, replacing the old one only once the new one is complete.
+     */
+    private void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(fingerprint.length);
+            out.write(fingerprint);
+            out.writeLong(indexedLength);
+            out.writeInt(blockCount);
+            for (int b = 0; b < blockCount; b++) {
+                out.writeLong(blockStart[b]);
+                out.writeLong(blockMinTime[b]);
+                out.writeLong(blockMaxTime[b]);
+                out.writeByte(blockLevels[b]);
+            }
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to rename " + temporary + " to " + file);
+        }
+    }
+
+}
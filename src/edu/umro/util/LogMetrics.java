@@ -0,0 +1,312 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import javax.management.*;
+
+/**
+ * Statistics of a <code>LogFileHandler</code>, registered as an MBean so that
+ * they can be watched with JConsole or any other JMX client.  They are
+ * gathered with striped counters, so that threads logging at the same time
+ * do not contend for them.
+ * <p>
+ * Publish latency is the time the caller spends in <code>publish</code>,
+ * which when the handler is asynchronous is only the time to queue the
+ * record.  It is kept in a histogram with four buckets per power of two, from
+ * which the 99th percentile is estimated.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class LogMetrics implements LogMetricsMBean {
+
+    /**
+     * Number of histogram buckets in each stripe, enough for any positive long.
+     */
+    private static final int BUCKETS = 256;
+
+    private static final int SEVERE = 0;
+    private static final int WARNING = 1;
+    private static final int INFO = 2;
+    private static final int CONFIG = 3;
+    private static final int FINE = 4;
+    private static final int FINER = 5;
+    private static final int FINEST = 6;
+
+    /**
+     * Lowest level counted by each index before <code>FINEST</code>.
+     */
+    private static final Level[] LEVELS = {Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE, Level.FINER};
+
+    private final LogFileHandler handler;
+
+    /**
+     * Record counts, indexed by <code>SEVERE</code> through <code>FINEST</code>.
+     */
+    private final LogStripedCounter[] levelCount = new LogStripedCounter[FINEST + 1];
+
+    private final LogStripedCounter bytesWritten = new LogStripedCounter();
+    private final LogStripedCounter flushCount = new LogStripedCounter();
+    private final LogStripedCounter latencyTotal = new LogStripedCounter();
+
+    /**
+     * Latency histogram, one row of buckets per stripe.
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(LogStripedCounter.STRIPES * BUCKETS);
+
+    /**
+     * Name the MBean is registered with, or null if it is not registered.
+     */
+    private ObjectName objectName = null;
+
+    /**
+     * Construct statistics for a handler.
+     *
+     * @param handler Handler whose roll over count and queue are reported.
+     */
+    LogMetrics(LogFileHandler handler) {
+        this.handler = handler;
+        for (int l = 0; l < levelCount.length; l++) {
+            levelCount[l] = new LogStripedCounter();
+        }
+    }
+
+    /**
+     * Get the index of the count for a level.  Levels between the standard
+     * ones are counted with the standard level below them.
+     */
+    private static int levelIndex(Level level) {
+        int value = level.intValue();
+        for (int l = 0; l < LEVELS.length; l++) {
+            if (value >= LEVELS[l].intValue()) {
+                return l;
+            }
+        }
+        return FINEST;
+    }
+
+    /**
+     * Get the histogram bucket of a latency.  Values below 4 have their own
+     * bucket, and larger ones are split into four buckets per power of two.
+     */
+    private static int bucket(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(0, nanos);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        return (msb * 4) + (int) ((nanos >>> (msb - 2)) & 3);
+    }
+
+    /**
+     * Get the largest latency that falls in a bucket.
+     */
+    private static long bucketMaximum(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int msb = bucket / 4;
+        long upper = (5L + (bucket % 4)) << (msb - 2);
+        return (upper < 0) ? Long.MAX_VALUE : upper - 1;
+    }
+
+    /**
+     * Count a published record.
+     *
+     * @param level Level of the record.
+     * @param nanos Time the caller spent publishing it.
+     */
+    void published(Level level, long nanos) {
+        levelCount[levelIndex(level)].increment();
+        latencyTotal.add(nanos);
+        histogram.getAndIncrement(LogStripedCounter.stripe() * BUCKETS + bucket(nanos));
+    }
+
+    void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void flushed() {
+        flushCount.increment();
+    }
+
+    /**
+     * Register the MBean with the platform MBean server under the type
+     * <code>LogFileHandler</code> and the given name.
+     *
+     * @param name Name, usually the log file pattern.
+     * @throws JMException If the MBean can not be registered.
+     */
+    synchronized void register(String name) throws JMException {
+        if (objectName == null) {
+            objectName = registerMBean(this, LogFileHandler.class.getSimpleName(), name);
+        }
+    }
+
+    /**
+     * Remove the MBean from the platform MBean server if it is registered.
+     *
+     * @throws JMException If the MBean can not be unregistered.
+     */
+    synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } finally {
+                objectName = null;
+            }
+        }
+    }
+
+    /**
+     * Register an MBean with the platform MBean server in the
+     * <code>edu.umro.util</code> domain.  If the name is in use, a number is
+     * appended to it.
+     *
+     * @param mbean MBean to register.
+     * @param type  Type, usually the simple name of the handler class.
+     * @param name  Name, usually the log file pattern.
+     * @return Name the MBean was registered with.
+     * @throws JMException If the MBean can not be registered.
+     */
+    static ObjectName registerMBean(Object mbean, String type, String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = "edu.umro.util:type=" + type + ",name=";
+        for (int n = 1; ; n++) {
+            ObjectName candidate = new ObjectName(base + ObjectName.quote((n == 1) ? name : (name + " " + n)));
+            try {
+                server.registerMBean(mbean, candidate);
+                return candidate;
+            } catch (InstanceAlreadyExistsException ex) {
+                // try the next name
+            }
+        }
+    }
+
+    @Override
+    public long getSevereCount() {
+        return levelCount[SEVERE].sum();
+    }
+
+    @Override
+    public long getWarningCount() {
+        return levelCount[WARNING].sum();
+    }
+
+    @Override
+    public long getInfoCount() {
+        return levelCount[INFO].sum();
+    }
+
+    @Override
+    public long getConfigCount() {
+        return levelCount[CONFIG].sum();
+    }
+
+    @Override
+    public long getFineCount() {
+        return levelCount[FINE].sum();
+    }
+
+    @Override
+    public long getFinerCount() {
+        return levelCount[FINER].sum();
+    }
+
+    @Override
+    public long getFinestCount() {
+        return levelCount[FINEST].sum();
+    }
+
+    @Override
+    public long getRecordCount() {
+        long total = 0;
+        for (LogStripedCounter counter : levelCount) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public double getAveragePublishNanos() {
+        long count = getRecordCount();
+        return (count == 0) ? 0 : ((double) latencyTotal.sum() / count);
+    }
+
+    @Override
+    public long getP99PublishNanos() {
+        long[] count = new long[BUCKETS];
+        long total = 0;
+        for (int s = 0; s < LogStripedCounter.STRIPES; s++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                long c = histogram.get(s * BUCKETS + b);
+                count[b] += c;
+                total += c;
+            }
+        }
+        long target = total - (total / 100);
+        long cumulative = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            cumulative += count[b];
+            if ((cumulative >= target) && (cumulative > 0)) {
+                return bucketMaximum(b);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushCount.sum();
+    }
+
+    @Override
+    public long getRollCount() {
+        return handler.getRollCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return handler.getQueueDepth();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return handler.getDroppedCount();
+    }
+
+    @Override
+    public void reset() {
+        for (LogStripedCounter counter : levelCount) {
+            counter.reset();
+        }
+        bytesWritten.reset();
+        flushCount.reset();
+        latencyTotal.reset();
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Management interface of <code>LogMetrics</code>, through which the
+ * statistics of a <code>LogFileHandler</code> are seen with JMX.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public interface LogMetricsMBean {
+
+    /** @return Number of records published at <code>SEVERE</code> or above. */
+    long getSevereCount();
+
+    /** @return Number of records published at <code>WARNING</code>. */
+    long getWarningCount();
+
+    /** @return Number of records published at <code>INFO</code>. */
+    long getInfoCount();
+
+    /** @return Number of records published at <code>CONFIG</code>. */
+    long getConfigCount();
+
+    /** @return Number of records published at <code>FINE</code>. */
+    long getFineCount();
+
+    /** @return Number of records published at <code>FINER</code>. */
+    long getFinerCount();
+
+    /** @return Number of records published at <code>FINEST</code> or below. */
+    long getFinestCount();
+
+    /** @return Number of records published at all levels. */
+    long getRecordCount();
+
+    /** @return Number of bytes written to the log file. */
+    long getBytesWritten();
+
+    /** @return Average time in nanoseconds that callers spent publishing a record. */
+    double getAveragePublishNanos();
+
+    /** @return Time in nanoseconds that 99 percent of publishes took no longer than, to within 25 percent. */
+    long getP99PublishNanos();
+
+    /** @return Number of times the log file was flushed. */
+    long getFlushCount();
+
+    /** @return Number of times the log file was rolled over. */
+    long getRollCount();
+
+    /** @return Number of records waiting to be written, or 0 if not asynchronous. */
+    int getQueueDepth();
+
+    /** @return Number of records discarded because the asynchronous queue was full. */
+    long getDroppedCount();
+
+    /**
+     * Set the counts and times to zero.  The roll over, queue and dropped
+     * counts are kept by the handler and are not reset.
+     */
+    void reset();
+
+}
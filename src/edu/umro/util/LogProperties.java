@@ -0,0 +1,141 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.util.logging.*;
+
+/**
+ * Read handler and filter settings from the logging properties file.  As
+ * with the standard handlers, each property is named by prefixing the class
+ * name, for example <code>edu.umro.util.LogFileHandler.async</code>.
+ * Values that are missing or can not be parsed yield the default.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class LogProperties {
+
+    /**
+     * Prefix of property names, which is the class name followed by a period.
+     */
+    private final String prefix;
+
+    /**
+     * Read properties for the given class.
+     *
+     * @param clss Class whose name prefixes the properties.
+     */
+    LogProperties(Class<?> clss) {
+        prefix = clss.getName() + ".";
+    }
+
+    /**
+     * Get the trimmed text of a property.
+     *
+     * @param name Property name without the class prefix.
+     * @param dflt Default value.
+     * @return Value of property, or the default if it is not set.
+     */
+    String getString(String name, String dflt) {
+        String value = LogManager.getLogManager().getProperty(prefix + name);
+        return (value == null) ? dflt : value.trim();
+    }
+
+    /**
+     * Get a file name, replacing <code>%h</code> with the user's home directory,
+     * <code>%t</code> with the temporary directory, and <code>%%</code> with
+     * <code>%</code>, as is done for <code>FileHandler</code> patterns.
+     *
+     * @param name Property name without the class prefix.
+     * @param dflt Default pattern.
+     * @return File named by the property.
+     */
+    File getFile(String name, String dflt) {
+        return expandPattern(getString(name, dflt));
+    }
+
+    /**
+     * Expand the <code>%h</code>, <code>%t</code> and <code>%%</code> parts of a file name pattern.
+     *
+     * @param pattern File name pattern.
+     * @return File named by the pattern.
+     */
+    static File expandPattern(String pattern) {
+        StringBuilder name = new StringBuilder();
+        for (int c = 0; c < pattern.length(); c++) {
+            char ch = pattern.charAt(c);
+            char next = (c + 1 < pattern.length()) ? pattern.charAt(c + 1) : 0;
+            if ((ch == '%') && (next == 'h')) {
+                name.append(System.getProperty("user.home"));
+                c++;
+            } else if ((ch == '%') && (next == 't')) {
+                name.append(System.getProperty("java.io.tmpdir"));
+                c++;
+            } else if ((ch == '%') && (next == '%')) {
+                name.append('%');
+                c++;
+            } else {
+                name.append(ch);
+            }
+        }
+        return new File(name.toString());
+    }
+
+    boolean getBoolean(String name, boolean dflt) {
+        String value = getString(name, null);
+        if (value == null) {
+            return dflt;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1");
+    }
+
+    int getInt(String name, int dflt) {
+        return (int) getLong(name, dflt);
+    }
+
+    long getLong(String name, long dflt) {
+        try {
+            return Long.parseLong(getString(name, Long.toString(dflt)));
+        } catch (NumberFormatException ex) {
+            return dflt;
+        }
+    }
+
+    Level getLevel(String name, Level dflt) {
+        try {
+            return Level.parse(getString(name, dflt.getName()));
+        } catch (IllegalArgumentException ex) {
+            return dflt;
+        }
+    }
+
+    /**
+     * Get the value of an enumerated property, ignoring case.
+     */
+    <E extends Enum<E>> E getEnum(String name, Class<E> type, E dflt) {
+        String value = getString(name, null);
+        if (value != null) {
+            for (E e : type.getEnumConstants()) {
+                if (e.name().equalsIgnoreCase(value)) {
+                    return e;
+                }
+            }
+        }
+        return dflt;
+    }
+
+}
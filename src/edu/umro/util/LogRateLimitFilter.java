@@ -0,0 +1,354 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * A filter that limits how fast records from each call site are logged, so
+ * that a storm of identical records does not saturate the disk.  A call site
+ * is the source class, source method and message (before parameters are
+ * applied) of a record.  Each call site may log a burst of records, after
+ * which records are passed at the given rate and the rest are suppressed.
+ * Optionally, one in every so many records over the limit is passed anyway as
+ * a sample.
+ * <p>
+ * Periodically, a record saying how many similar records were suppressed,
+ * and how many were passed as samples, is logged for each call site through
+ * the logger named for this class, at the level of the last suppressed record.
+ * The summaries of all filters are logged by one shared daemon thread, and a
+ * filter stops being summarized once it has no call sites left.
+ * <p>
+ * Each call site's limit is kept in a single atomic value (the generic cell
+ * rate algorithm, where the value is the time at which the bucket will next be
+ * empty), and call sites are kept in a concurrent map, so checking a record
+ * takes no locks once its call site has been seen.  Call sites whose bucket
+ * has emptied and that have been idle for a summary interval are removed.
+ * <p>
+ * The filter can be set on a <code>Logger</code> or <code>Handler</code>, for
+ * example with these logging properties:
+ * <pre>
+ *     edu.umro.util.LogFileHandler.filter = edu.umro.util.LogRateLimitFilter
+ *     edu.umro.util.LogRateLimitFilter.rate = 10
+ *     edu.umro.util.LogRateLimitFilter.burst = 50
+ *     edu.umro.util.LogRateLimitFilter.sampleEvery = 0
+ *     edu.umro.util.LogRateLimitFilter.summaryInterval = 10000
+ *     edu.umro.util.LogRateLimitFilter.maxSites = 10000
+ * </pre>
+ * where the rate is in records per second per call site, a sample interval
+ * of 0 means no samples, and the summary interval is in milliseconds.  Once
+ * there are <code>maxSites</code> call sites, records from new ones are not
+ * limited.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class LogRateLimitFilter implements Filter {
+
+    public static final double DEFAULT_RATE = 10;
+    public static final int DEFAULT_BURST = 50;
+    public static final long DEFAULT_SUMMARY_INTERVAL = 10 * 1000;
+    public static final int DEFAULT_MAX_SITES = 10000;
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * Logger that summaries are logged through.  Its records are never suppressed.
+     */
+    private static final String SUMMARY_LOGGER_NAME = LogRateLimitFilter.class.getName();
+
+    private static final String SUMMARY_MESSAGE = "Suppressed {0} similar records and passed {1} samples: {2}";
+
+    /**
+     * Logs the summaries of all filters, created when first used.
+     */
+    private static final class SummaryScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LogRateLimitFilter.class.getSimpleName() + " summary");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Identifies a call site.
+     */
+    private static final class Site {
+        final String className;
+        final String methodName;
+        final String message;
+        final int hash;
+
+        Site(String className, String methodName, String message) {
+            this.className = className;
+            this.methodName = methodName;
+            this.message = message;
+            hash = (((className == null) ? 0 : className.hashCode()) * 31 +
+                    ((methodName == null) ? 0 : methodName.hashCode())) * 31 +
+                    ((message == null) ? 0 : message.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Site)) {
+                return false;
+            }
+            Site site = (Site) other;
+            return (hash == site.hash) && General.eqString(message, site.message) &&
+                    General.eqString(methodName, site.methodName) && General.eqString(className, site.className);
+        }
+    }
+
+    /**
+     * Limit and statistics of one call site.
+     */
+    private static final class Bucket {
+        /**
+         * Theoretical arrival time: the time at which the bucket will be empty, in nanoseconds.
+         */
+        final AtomicLong arrival;
+
+        /**
+         * Number of records suppressed since the last summary.
+         */
+        final AtomicLong suppressed = new AtomicLong(0);
+
+        /**
+         * Number of records passed as samples since the last summary.
+         */
+        final AtomicLong sampled = new AtomicLong(0);
+
+        /**
+         * Number of records over the limit, which decides which are passed as
+         * samples.  Not reset by summaries, so that sampling is evenly spaced.
+         */
+        final AtomicLong overLimit = new AtomicLong(0);
+
+        /**
+         * Time the call site was last used, updated at most once per millisecond.
+         */
+        volatile long lastSeen;
+
+        /**
+         * Level of the last suppressed record.
+         */
+        volatile Level level = Level.INFO;
+
+        Bucket(long now) {
+            arrival = new AtomicLong(now);
+            lastSeen = now;
+        }
+    }
+
+    private final long emissionInterval;
+    private final long tolerance;
+    private final int sampleEvery;
+    private final long summaryInterval;
+    private final int maxSites;
+
+    private final ConcurrentHashMap<Site, Bucket> siteMap = new ConcurrentHashMap<Site, Bucket>();
+
+    /**
+     * Number of call sites in the map, which is cheaper to read than its size.
+     */
+    private final AtomicInteger siteCount = new AtomicInteger(0);
+
+    /**
+     * Periodic logging of summaries, started when a record is suppressed and
+     * stopped when there are no call sites left, or null when stopped.
+     */
+    private volatile ScheduledFuture<?> summarizer = null;
+
+
+    /**
+     * Construct a filter configured by the logging properties.
+     */
+    public LogRateLimitFilter() {
+        this(new LogProperties(LogRateLimitFilter.class));
+    }
+
+
+    private LogRateLimitFilter(LogProperties properties) {
+        this(parseRate(properties.getString("rate", null)), properties.getInt("burst", DEFAULT_BURST),
+                properties.getInt("sampleEvery", 0), properties.getLong("summaryInterval", DEFAULT_SUMMARY_INTERVAL),
+                properties.getInt("maxSites", DEFAULT_MAX_SITES));
+    }
+
+
+    /**
+     * Construct a filter.
+     *
+     * @param rate            Records per second passed from each call site once its burst is used.
+     * @param burst           Number of records a call site may log at once.
+     * @param sampleEvery     Pass one in this many suppressed records, or 0 to pass none.
+     * @param summaryInterval Milliseconds between summaries of suppressed records.
+     * @param maxSites        Largest number of call sites that are limited.
+     */
+    public LogRateLimitFilter(double rate, int burst, int sampleEvery, long summaryInterval, int maxSites) {
+        emissionInterval = Math.max(1, (long) (NANOS_PER_SECOND / Math.max(rate, 1e-6)));
+        tolerance = emissionInterval * Math.max(1, burst);
+        this.sampleEvery = Math.max(0, sampleEvery);
+        this.summaryInterval = Math.max(1, summaryInterval);
+        this.maxSites = maxSites;
+    }
+
+
+    private static double parseRate(String text) {
+        try {
+            return (text == null) ? DEFAULT_RATE : Double.parseDouble(text);
+        } catch (NumberFormatException ex) {
+            return DEFAULT_RATE;
+        }
+    }
+
+
+    /**
+     * Take a token from a bucket if one is available.
+     */
+    private boolean tryAcquire(Bucket bucket, long now) {
+        while (true) {
+            long arrival = bucket.arrival.get();
+            long next = Math.max(arrival, now) + emissionInterval;
+            if (next - now > tolerance) {
+                return false;
+            }
+            if (bucket.arrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Determine whether a record should be logged.
+     *
+     * @param record Record to check.
+     * @return False if the record's call site is over its limit.
+     */
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        if (SUMMARY_LOGGER_NAME.equals(record.getLoggerName())) {
+            return true;
+        }
+        Site site = new Site(record.getSourceClassName(), record.getSourceMethodName(), record.getMessage());
+        long now = System.nanoTime();
+        Bucket bucket = siteMap.get(site);
+        if (bucket == null) {
+            if (siteCount.get() >= maxSites) {
+                return true;
+            }
+            Bucket created = new Bucket(now);
+            bucket = siteMap.putIfAbsent(site, created);
+            if (bucket == null) {
+                bucket = created;
+                siteCount.incrementAndGet();
+            }
+        }
+        if (now - bucket.lastSeen > NANOS_PER_SECOND / 1000) {
+            bucket.lastSeen = now;
+        }
+        if (tryAcquire(bucket, now)) {
+            return true;
+        }
+        bucket.level = record.getLevel();
+        if (summarizer == null) {
+            startSummarizer();
+        }
+        if ((sampleEvery > 0) && ((bucket.overLimit.incrementAndGet() % sampleEvery) == 0)) {
+            bucket.sampled.incrementAndGet();
+            return true;
+        }
+        bucket.suppressed.incrementAndGet();
+        return false;
+    }
+
+
+    /**
+     * Start logging summaries periodically, unless it has already been started.
+     */
+    private synchronized void startSummarizer() {
+        if (summarizer == null) {
+            summarizer = SummaryScheduler.INSTANCE.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    summarize();
+                    stopSummarizerIfIdle();
+                }
+            }, summaryInterval, summaryInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Stop logging summaries if there are no call sites left, so that an
+     * unused filter is not kept by the scheduler.  A call site added while
+     * stopping is found by checking again, and one added after that sees the
+     * summarizer stopped and starts it again when it suppresses a record.
+     */
+    private synchronized void stopSummarizerIfIdle() {
+        if ((summarizer == null) || !siteMap.isEmpty()) {
+            return;
+        }
+        summarizer.cancel(false);
+        summarizer = null;
+        if (!siteMap.isEmpty()) {
+            startSummarizer();
+        }
+    }
+
+
+    /**
+     * Log a summary for each call site that had records suppressed, and
+     * remove call sites whose bucket is empty and that have been idle for a
+     * summary interval.  A call site is only removed once its bucket is empty
+     * so that removing it does not give it a fresh burst.
+     */
+    private void summarize() {
+        Logger logger = Logger.getLogger(SUMMARY_LOGGER_NAME);
+        long now = System.nanoTime();
+        long idle = summaryInterval * NANOS_PER_SECOND / 1000;
+        for (Iterator<Map.Entry<Site, Bucket>> iterator = siteMap.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Site, Bucket> entry = iterator.next();
+            Site site = entry.getKey();
+            Bucket bucket = entry.getValue();
+            long suppressed = bucket.suppressed.getAndSet(0);
+            long sampled = bucket.sampled.getAndSet(0);
+            if ((suppressed > 0) || (sampled > 0)) {
+                LogRecord record = new LogRecord(bucket.level, SUMMARY_MESSAGE);
+                record.setParameters(new Object[]{suppressed, sampled, site.message});
+                record.setSourceClassName(site.className);
+                record.setSourceMethodName(site.methodName);
+                record.setLoggerName(SUMMARY_LOGGER_NAME);
+                logger.log(record);
+            } else if ((bucket.arrival.get() - now <= 0) && (now - bucket.lastSeen > idle)) {
+                iterator.remove();
+                siteCount.decrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/**
+ * Find the records in log files written by <code>LogFileHandler</code> that
+ * are at or above a level and within a range of time.  Each file is indexed
+ * (see <code>LogIndex</code>) the first time it is read, and the index is
+ * brought up to date as the file grows, so only the parts of the file that
+ * may hold matching records are read.  Files are memory mapped, and several
+ * files, such as a log file and the files rolled over from it, are read in
+ * parallel.  Files compressed with gzip can not be indexed and are read in
+ * full.
+ * <p>
+ * The reader can be run from the command line:
+ * <pre>
+ *     java -cp util.jar edu.umro.util.LogReader -level SEVERE -from 10:02 -to 10:05 service.log*
+ * </pre>
+ * Times are of the form <code>yyyy/MM/dd HH:mm:ss.SSS</code>, as written in
+ * the log, and may be shortened to the minute, or to just the time of day
+ * for today.  A shortened end time includes the whole minute or second.
+ * Matching records are printed in the order of the files given.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class LogReader {
+
+    /**
+     * A record read from a log file.
+     */
+    public static final class Entry {
+        /** File the record was read from. */
+        public final File file;
+
+        /** Offset of the record in the file. */
+        public final long offset;
+
+        /** Time of the record in milliseconds since the epoch. */
+        public final long time;
+
+        /** Text of the record, which may be several lines, without the final newline. */
+        public final String text;
+
+        Entry(File file, long offset, long time, String text) {
+            this.file = file;
+            this.offset = offset;
+            this.time = time;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Formats accepted for times given on the command line.
+     */
+    private static final String[] TIME_FORMATS = {
+            "yyyy/MM/dd HH:mm:ss.SSS", "yyyy/MM/dd HH:mm:ss", "yyyy/MM/dd HH:mm", "HH:mm:ss.SSS", "HH:mm:ss", "HH:mm"};
+
+    private final int levelMask;
+    private final long from;
+    private final long to;
+    private final Charset charset;
+
+    /**
+     * Construct a reader that finds the records in a range of time at or above a level.
+     *
+     * @param minimumLevel Lowest level of records found.
+     * @param from         Earliest time of records found, in milliseconds since the epoch.
+     * @param to           Latest time of records found, in milliseconds since the epoch.
+     * @param charset      Encoding of the log files.
+     */
+    public LogReader(Level minimumLevel, long from, long to, Charset charset) {
+        levelMask = LogIndex.levelMask(minimumLevel);
+        this.from = from;
+        this.to = to;
+        this.charset = charset;
+    }
+
+    /**
+     * Construct a reader for files in the platform's default encoding, as
+     * written by <code>LogFileHandler</code> unless it is configured otherwise.
+     *
+     * @param minimumLevel Lowest level of records found.
+     * @param from         Earliest time of records found, in milliseconds since the epoch.
+     * @param to           Latest time of records found, in milliseconds since the epoch.
+     */
+    public LogReader(Level minimumLevel, long from, long to) {
+        this(minimumLevel, from, to, Charset.defaultCharset());
+    }
+
+    /**
+     * Add the matching records between two positions in a buffer to a list.
+     * The start must be the start of a line.
+     */
+    private void scan(File file, ByteBuffer buffer, int start, int end, long base, List<Entry> entryList) {
+        LogIndex.Header header = new LogIndex.Header();
+        int recordStart = -1;
+        long recordTime = 0;
+        int lineStart = start;
+        for (int p = start; p <= end; p++) {
+            if ((p < end) && (buffer.get(p) != '\n')) {
+                continue;
+            }
+            boolean isHeader = (p < end) && header.parse(buffer, lineStart, p);
+            if ((isHeader || (p == end)) && (recordStart >= 0)) {
+                int recordEnd = lineStart - 1;
+                byte[] bytes = new byte[Math.max(0, recordEnd - recordStart)];
+                for (int b = 0; b < bytes.length; b++) {
+                    bytes[b] = buffer.get(recordStart + b);
+                }
+                entryList.add(new Entry(file, base + recordStart, recordTime, new String(bytes, charset)));
+                recordStart = -1;
+            }
+            if (isHeader && ((header.levelBit & levelMask) != 0) && (header.time >= from) && (header.time <= to)) {
+                recordStart = lineStart;
+                recordTime = header.time;
+            }
+            lineStart = p + 1;
+        }
+    }
+
+    /**
+     * Find the matching records in a file.
+     *
+     * @param file Log file, which may be compressed with gzip if its name ends with <code>.gz</code>.
+     * @return Matching records in the order they are in the file.
+     * @throws IOException If the file can not be read.
+     */
+    public List<Entry> read(File file) throws IOException {
+        ArrayList<Entry> entryList = new ArrayList<Entry>();
+        if (file.getName().endsWith(LogArchiver.GZIP_SUFFIX)) {
+            InputStream in = new GZIPInputStream(new FileInputStream(file), 64 * 1024);
+            try {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int size;
+                while ((size = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, size);
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(content.toByteArray());
+                int end = bytes.limit();
+                while ((end > 0) && (bytes.get(end - 1) != '\n')) {
+                    end--;
+                }
+                scan(file, bytes, 0, end, 0, entryList);
+            } finally {
+                in.close();
+            }
+            return entryList;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            LogIndex index = LogIndex.open(file, channel);
+            for (int b = 0; b < index.blockCount; b++) {
+                if (((index.blockLevels[b] & levelMask) == 0) || (index.blockMaxTime[b] < from) || (index.blockMinTime[b] > to)) {
+                    continue;
+                }
+                long start = index.blockStart[b];
+                int size = (int) (index.blockEnd(b) - start);
+                if (size > 0) {
+                    scan(file, channel.map(FileChannel.MapMode.READ_ONLY, start, size), 0, size, start, entryList);
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        return entryList;
+    }
+
+    /**
+     * Find the matching records in several files, reading them in parallel.
+     *
+     * @param fileList Log files.
+     * @return Matching records, in the order of the files and then in the order they are in each file.
+     * @throws IOException If a file can not be read.
+     */
+    public List<Entry> read(List<File> fileList) throws IOException {
+        int threads = Math.max(1, Math.min(fileList.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<List<Entry>>> futureList = new ArrayList<Future<List<Entry>>>();
+            for (final File file : fileList) {
+                futureList.add(executor.submit(new Callable<List<Entry>>() {
+                    @Override
+                    public List<Entry> call() throws IOException {
+                        return read(file);
+                    }
+                }));
+            }
+            ArrayList<Entry> entryList = new ArrayList<Entry>();
+            for (Future<List<Entry>> future : futureList) {
+                try {
+                    entryList.addAll(future.get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return entryList;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse a time given on the command line.
+     *
+     * @param text Time.
+     * @param end  If true, a time without seconds or milliseconds is moved to the end of its minute or second.
+     * @return Time in milliseconds since the epoch.
+     * @throws ParseException If the time is not in an accepted format.
+     */
+    private static long parseTime(String text, boolean end) throws ParseException {
+        for (String format : TIME_FORMATS) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = dateFormat.parse(text.trim(), position);
+            if ((date == null) || (position.getIndex() != text.trim().length())) {
+                continue;
+            }
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(date);
+            if (!format.startsWith("yyyy")) {
+                Calendar today = Calendar.getInstance();
+                calendar.set(today.get(Calendar.YEAR), today.get(Calendar.MONTH), today.get(Calendar.DAY_OF_MONTH));
+            }
+            long time = calendar.getTimeInMillis();
+            if (end && !format.endsWith("ss.SSS")) {
+                time += format.endsWith("mm") ? 59999 : 999;
+            }
+            return time;
+        }
+        throw new ParseException("Unrecognized time: " + text, 0);
+    }
+
+    /**
+     * Print the records in log files that match a query.
+     *
+     * @param args Options <code>-level</code>, <code>-from</code> and <code>-to</code>, followed by the names of files.
+     */
+    public static void main(String[] args) {
+        Level level = Level.ALL;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        ArrayList<File> fileList = new ArrayList<File>();
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            for (int a = 0; a < args.length; a++) {
+                if (args[a].equals("-level") && (a + 1 < args.length)) {
+                    level = Level.parse(args[++a].toUpperCase());
+                } else if (args[a].equals("-from") && (a + 1 < args.length)) {
+                    from = parseTime(args[++a], false);
+                } else if (args[a].equals("-to") && (a + 1 < args.length)) {
+                    to = parseTime(args[++a], true);
+                } else {
+                    fileList.add(new File(args[a]));
+                }
+            }
+            if (fileList.isEmpty()) {
+                System.err.println("Usage: LogReader [-level LEVEL] [-from TIME] [-to TIME] file...");
+                System.exit(1);
+            }
+            for (Entry entry : new LogReader(level, from, to).read(fileList)) {
+                out.write(entry.text);
+                out.write('\n');
+            }
+            out.flush();
+        } catch (Exception ex) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                ;
+            }
+            System.err.println("Unable to read log: " + ex);
+            System.exit(1);
+        }
+    }
+
+}
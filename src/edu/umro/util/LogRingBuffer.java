@@ -0,0 +1,132 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * A bounded, lock-free queue of log records for many producers and a single
+ * consumer.  Each slot carries a sequence number that tells producers when
+ * the slot is free and tells the consumer when it has been filled, so
+ * producers only contend on claiming the next position.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class LogRingBuffer {
+
+    /**
+     * Records waiting to be consumed.  Access is ordered by <code>sequence</code>.
+     */
+    private final LogRecord[] slotList;
+
+    /**
+     * For each slot, the position at which it may next be written (when equal to
+     * the position) or read (when one greater than the position).
+     */
+    private final AtomicLongArray sequence;
+
+    /**
+     * Mask for converting a position to a slot index.
+     */
+    private final int mask;
+
+    /**
+     * Next position to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Next position to be read by the consumer.  Only written by the consumer.
+     */
+    private volatile long head = 0;
+
+    /**
+     * Construct a buffer.
+     *
+     * @param capacity Minimum number of records held, rounded up to a power of 2.
+     */
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slotList = new LogRecord[size];
+        sequence = new AtomicLongArray(size);
+        for (int s = 0; s < size; s++) {
+            sequence.set(s, s);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Add a record if there is room.  May be called from any thread.
+     *
+     * @param record Record to add.
+     * @return True if added, false if the buffer is full.
+     */
+    boolean offer(LogRecord record) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long available = sequence.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slotList[index] = record;
+                    sequence.set(index, position + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest record.  Must only be called by the consumer thread.
+     *
+     * @return Oldest record, or null if the buffer is empty.
+     */
+    LogRecord poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequence.get(index) != position + 1) {
+            return null;
+        }
+        LogRecord record = slotList[index];
+        slotList[index] = null;
+        sequence.set(index, position + slotList.length);
+        head = position + 1;
+        return record;
+    }
+
+    /**
+     * Get the approximate number of records waiting.
+     *
+     * @return Number of records in the buffer.
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(slotList.length, tail.get() - head));
+    }
+
+    /**
+     * Get the number of records the buffer can hold.
+     *
+     * @return Capacity.
+     */
+    int capacity() {
+        return slotList.length;
+    }
+
+}
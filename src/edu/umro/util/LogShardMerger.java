@@ -0,0 +1,205 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Merge the shard files written by a sharded <code>LogFileHandler</code>
+ * back into one log in sequence number order.  The files must be formatted
+ * with <code>LogFormatter</code>, whose first line of each record ends with
+ * <code>Seq:</code> and the sequence number.
+ * <p>
+ * Records in each shard are in the order they were written, which is nearly
+ * but not exactly sequence number order when several threads share a shard.
+ * The files are merged by always taking the next record from the shard whose
+ * next record has the lowest sequence number, and the merged records are
+ * passed through a window that sorts records that are out of order by fewer
+ * than <code>WINDOW_SIZE</code> records.  Sequence numbers start over when the
+ * JVM starts, so only the files of one run should be merged.  It can be run
+ * from the command line:
+ * <pre>
+ *     java -cp util.jar edu.umro.util.LogShardMerger service.log.shard* &gt; service.log.merged
+ * </pre>
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class LogShardMerger {
+
+    /**
+     * Number of records held to put records that are slightly out of order in order.
+     */
+    public static final int WINDOW_SIZE = 64 * 1024;
+
+    private static final String SEQUENCE_TAG = " Seq:";
+
+    /**
+     * A record and its sequence number.
+     */
+    private static final class Record {
+        final long sequence;
+        final String text;
+
+        Record(long sequence, String text) {
+            this.sequence = sequence;
+            this.text = text;
+        }
+    }
+
+    private static final Comparator<Record> SEQUENCE_ORDER = new Comparator<Record>() {
+        @Override
+        public int compare(Record a, Record b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    /**
+     * Reads the records of one shard file.
+     */
+    private static final class Shard {
+        private final BufferedReader reader;
+        private final LogIndex.Header header = new LogIndex.Header();
+
+        /**
+         * First line of the next record, or null at the end of the file.
+         */
+        private String line;
+
+        /**
+         * Next record, or null at the end of the file.
+         */
+        Record next;
+
+        Shard(BufferedReader reader) throws IOException {
+            this.reader = reader;
+            line = reader.readLine();
+            advance();
+        }
+
+        private boolean isHeader(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            return header.parse(ByteBuffer.wrap(bytes), 0, bytes.length) && (text.lastIndexOf(SEQUENCE_TAG) >= 0);
+        }
+
+        /**
+         * Read the next record and the lines that follow it.  Lines before
+         * the first record are taken as a record of their own with a
+         * sequence number of -1.
+         */
+        void advance() throws IOException {
+            if (line == null) {
+                next = null;
+                return;
+            }
+            long sequence = -1;
+            if (isHeader(line)) {
+                String number = line.substring(line.lastIndexOf(SEQUENCE_TAG) + SEQUENCE_TAG.length());
+                int end = number.indexOf(' ');
+                try {
+                    sequence = Long.parseLong((end < 0) ? number.trim() : number.substring(0, end));
+                } catch (NumberFormatException ex) {
+                    sequence = -1;
+                }
+            }
+            StringBuilder text = new StringBuilder(line);
+            while (((line = reader.readLine()) != null) && !isHeader(line)) {
+                text.append('\n').append(line);
+            }
+            next = new Record(sequence, text.toString());
+        }
+    }
+
+    /**
+     * Merge shards and write the records in sequence number order.
+     *
+     * @param readerList Contents of the shard files.
+     * @param out        Destination.
+     * @throws IOException If a shard can not be read or the destination can not be written.
+     */
+    public static void merge(List<BufferedReader> readerList, Writer out) throws IOException {
+        PriorityQueue<Shard> shardQueue = new PriorityQueue<Shard>(Math.max(1, readerList.size()), new Comparator<Shard>() {
+            @Override
+            public int compare(Shard a, Shard b) {
+                return SEQUENCE_ORDER.compare(a.next, b.next);
+            }
+        });
+        for (BufferedReader reader : readerList) {
+            Shard shard = new Shard(reader);
+            if (shard.next != null) {
+                shardQueue.add(shard);
+            }
+        }
+        PriorityQueue<Record> window = new PriorityQueue<Record>(WINDOW_SIZE + 1, SEQUENCE_ORDER);
+        while (!shardQueue.isEmpty()) {
+            Shard shard = shardQueue.poll();
+            window.add(shard.next);
+            shard.advance();
+            if (shard.next != null) {
+                shardQueue.add(shard);
+            }
+            if (window.size() > WINDOW_SIZE) {
+                out.write(window.poll().text);
+                out.write('\n');
+            }
+        }
+        while (!window.isEmpty()) {
+            out.write(window.poll().text);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Merge shard files and write them to standard output.
+     *
+     * @param args Names of the shard files.
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: LogShardMerger file...");
+            System.exit(1);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        ArrayList<BufferedReader> readerList = new ArrayList<BufferedReader>();
+        try {
+            for (String fileName : args) {
+                readerList.add(new BufferedReader(new InputStreamReader(new FileInputStream(fileName)), 64 * 1024));
+            }
+            merge(readerList, out);
+            out.flush();
+        } catch (IOException ex) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                ;
+            }
+            System.err.println("Unable to merge log shards: " + ex);
+            System.exit(1);
+        } finally {
+            for (BufferedReader reader : readerList) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    ;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A counter that many threads can add to at once without contending for the
+ * same memory.  The count is split over several cells, each on its own cache
+ * line, and each thread adds to the cell chosen by its id.  Reading the count
+ * adds up the cells, so it is slower than adding and is not an atomic
+ * snapshot while other threads are adding.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+final class LogStripedCounter {
+
+    /**
+     * Number of cells, a power of two of at least twice the number of processors.
+     */
+    static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        while ((stripes < Runtime.getRuntime().availableProcessors() * 2) && (stripes < 64)) {
+            stripes *= 2;
+        }
+        STRIPES = stripes;
+    }
+
+    /**
+     * Distance in longs between cells, which keeps each on its own 64 byte cache line.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Get the stripe that the current thread uses, spreading consecutive
+     * thread ids over the stripes.
+     *
+     * @return Stripe in the range 0 to <code>STRIPES</code> - 1.
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    void add(long amount) {
+        cells.getAndAdd(stripe() * PADDING, amount);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * Get the total of all cells.
+     *
+     * @return Count.
+     */
+    long sum() {
+        long sum = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            sum += cells.get(s * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Set the count to zero.  Additions made while resetting may be lost.
+     */
+    void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            cells.set(s * PADDING, 0);
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.*;
+
+/**
+ * Remember the stack traces that have been written so that repeats can be
+ * written as a reference instead of in full.  Each throwable in a chain of
+ * causes is identified by a hash of its class and stack frames (but not its
+ * message), which is the same from one run to the next.  The first time a
+ * trace is written it is given in full, tagged with its id:
+ * <pre>
+ *     java.io.IOException: Connection reset [trace#3f09a1c2b4de]
+ *         java.net.SocketInputStream.read(SocketInputStream.java:210)
+ *         ...
+ * </pre>
+ * and after that only the first line is written.  Causes whose traces have
+ * not been seen are still written in full, so a new failure underneath a
+ * familiar one is not lost.
+ * <p>
+ * The cache is bounded, and a trace is written in full again once it has
+ * been evicted or the repeat interval has passed since it was last written
+ * in full, so that it can be found in log files that have not yet been
+ * deleted.  Deduplication is off unless enabled with these logging
+ * properties:
+ * <pre>
+ *     edu.umro.util.LogTraceCache.dedup = true
+ *     edu.umro.util.LogTraceCache.size = 1024
+ *     edu.umro.util.LogTraceCache.repeatInterval = 3600000
+ * </pre>
+ * where the interval is in milliseconds and 0 means never repeat.  A trace
+ * is only abbreviated where the full trace is certain to be in the same file,
+ * so each handler (or its formatter) keeps its own cache and clears it when
+ * it starts a new file.  Traces formatted by <code>Log.fmtEx</code> or
+ * written to XML exceptions are always written in full, since they may never
+ * be logged, or may be read by someone who did not see the earlier trace.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class LogTraceCache {
+
+    static final int DEFAULT_SIZE = 1024;
+    static final long DEFAULT_REPEAT_INTERVAL = 60 * 60 * 1000;
+
+    private static final boolean DEDUP;
+    private static final int SIZE;
+    private static final long REPEAT_INTERVAL;
+
+    static {
+        LogProperties properties = new LogProperties(LogTraceCache.class);
+        DEDUP = properties.getBoolean("dedup", false);
+        SIZE = Math.max(1, properties.getInt("size", DEFAULT_SIZE));
+        REPEAT_INTERVAL = Math.max(0, properties.getLong("repeatInterval", DEFAULT_REPEAT_INTERVAL));
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Number of hex digits in an id.
+     */
+    private static final int ID_DIGITS = 12;
+
+    /**
+     * Time each remembered trace was last written in full, by id.
+     */
+    private final LRUCache<Long, Long> written = new LRUCache<Long, Long>(SIZE);
+
+    /**
+     * Construct a cache as configured by the logging properties.
+     *
+     * @return New cache, or null if deduplication is off.
+     */
+    static LogTraceCache newCache() {
+        return DEDUP ? new LogTraceCache() : null;
+    }
+
+    private static long hash(long hash, String text) {
+        if (text != null) {
+            for (int c = 0; c < text.length(); c++) {
+                hash = (hash ^ text.charAt(c)) * FNV_PRIME;
+            }
+        }
+        return (hash ^ '|') * FNV_PRIME;
+    }
+
+    /**
+     * Get the id of a throwable's class and stack frames.
+     */
+    private static long id(Throwable throwable, StackTraceElement[] frames) {
+        long hash = hash(FNV_OFFSET, throwable.getClass().getName());
+        for (StackTraceElement frame : frames) {
+            hash = hash(hash, frame.getClassName());
+            hash = hash(hash, frame.getMethodName());
+            hash = hash(hash, frame.getFileName());
+            hash = (hash ^ frame.getLineNumber()) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static void appendId(long id, StringBuilder text) {
+        text.append(" [trace#");
+        for (int shift = (ID_DIGITS - 1) * 4; shift >= 0; shift -= 4) {
+            text.append(Character.forDigit((int) (id >>> shift) & 0xf, 16));
+        }
+        text.append(']');
+    }
+
+    /**
+     * Determine whether a trace must be written in full, and if so, remember that it was.
+     */
+    private boolean isNew(long id) {
+        long now = System.currentTimeMillis();
+        synchronized (written) {
+            Long last = written.get(id);
+            if ((last == null) || ((REPEAT_INTERVAL > 0) && ((now - last) >= REPEAT_INTERVAL))) {
+                written.put(id, now);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Forget all traces, so that each is written in full the next time.
+     */
+    void clear() {
+        synchronized (written) {
+            written.clear();
+        }
+    }
+
+    /**
+     * Append a throwable and its causes, writing the stack frames of only
+     * those that have not been written before.  As with
+     * <code>printStackTrace</code>, the frames that a cause has in common
+     * with the throwable that it caused are summarized.  No newline is
+     * appended after the last line.
+     *
+     * @param throwable Throwable to append.
+     * @param text      Destination.
+     * @param indent    Put before each frame.
+     * @param at        Put between the indent and each frame.
+     */
+    void append(Throwable throwable, StringBuilder text, String indent, String at) {
+        Set<Throwable> appended = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        StackTraceElement[] enclosing = null;
+        for (Throwable t = throwable; (t != null) && appended.add(t); t = t.getCause()) {
+            if (enclosing != null) {
+                text.append("\nCaused by: ");
+            }
+            text.append(t);
+            StackTraceElement[] frames = t.getStackTrace();
+            long id = id(t, frames);
+            appendId(id, text);
+            if (isNew(id)) {
+                int common = 0;
+                if (enclosing != null) {
+                    int f = frames.length - 1;
+                    int e = enclosing.length - 1;
+                    while ((f >= 0) && (e >= 0) && frames[f].equals(enclosing[e])) {
+                        common++;
+                        f--;
+                        e--;
+                    }
+                }
+                for (int f = 0; f < frames.length - common; f++) {
+                    text.append('\n').append(indent).append(at).append(frames[f]);
+                }
+                if (common > 0) {
+                    text.append('\n').append(indent).append("... ").append(common).append(" more");
+                }
+            }
+            enclosing = frames;
+        }
+    }
+
+}
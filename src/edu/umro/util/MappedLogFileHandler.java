@@ -0,0 +1,576 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.logging.Formatter;
+import java.util.logging.*;
+
+/**
+ * A log handler that appends formatted records to a memory mapped region of
+ * the log file instead of making a <code>write</code> call for each record.
+ * When a region fills, the next region of the file is mapped.  The page cache
+ * absorbs bursts of records, and a background thread periodically forces the
+ * written regions to disk.
+ * <p>
+ * When the file reaches the size limit it is rolled over: <code>file</code>
+ * is renamed to <code>file.1</code>, <code>file.1</code> to <code>file.2</code>,
+ * and so on, keeping <code>count</code> files in all.  As with
+ * <code>FileHandler</code>, existing files are rolled over when the handler
+ * starts unless it is appending.
+ * <p>
+ * Records are formatted with a <code>LogFormatter</code> by default, so the
+ * files have the same content as those written by <code>LogFileHandler</code>.
+ * The file is extended a region at a time and truncated to the end of the last
+ * record when it is closed.  If the process dies without closing the handler
+ * the file may end with zero bytes, which are removed when the file is next
+ * opened for appending.
+ * <p>
+ * The handler is configured with these logging properties:
+ * <pre>
+ *     edu.umro.util.MappedLogFileHandler.pattern = %h/java.log
+ *     edu.umro.util.MappedLogFileHandler.limit = 67108864
+ *     edu.umro.util.MappedLogFileHandler.count = 5
+ *     edu.umro.util.MappedLogFileHandler.append = false
+ *     edu.umro.util.MappedLogFileHandler.regionSize = 1048576
+ *     edu.umro.util.MappedLogFileHandler.forceInterval = 1000
+ *     edu.umro.util.MappedLogFileHandler.level = ALL
+ *     edu.umro.util.MappedLogFileHandler.encoding = UTF-8
+ * </pre>
+ * where <code>%h</code> is the user's home directory and <code>%t</code> is
+ * the temporary directory, the limit is in bytes (0 for no limit), and the
+ * force interval is in milliseconds (0 to only force on flush, roll over and close).
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class MappedLogFileHandler extends Handler {
+
+    /**
+     * Default size in bytes of each mapped region.
+     */
+    public static final int DEFAULT_REGION_SIZE = 1024 * 1024;
+
+    /**
+     * Default size in bytes at which the file is rolled over.
+     */
+    public static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    /**
+     * Default number of files kept.
+     */
+    public static final int DEFAULT_COUNT = 5;
+
+    /**
+     * Default time in milliseconds between forcing written regions to disk.
+     */
+    public static final long DEFAULT_FORCE_INTERVAL = 1000;
+
+    /**
+     * Regions are at least this large so that the encoder can always make progress.
+     */
+    private static final int MIN_REGION_SIZE = 4096;
+
+    /**
+     * The text buffer is replaced if a very long record made it larger than this.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final File file;
+    private final long limit;
+    private final int count;
+    private final int regionSize;
+    private final long forceInterval;
+
+    /**
+     * Channel of the file being written, or null if it could not be opened.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * Region currently being written.
+     */
+    private MappedByteBuffer region = null;
+
+    /**
+     * Position in the file of the start of the current region.
+     */
+    private long regionStart = 0;
+
+    /**
+     * Regions that have been filled but not yet forced to disk.
+     */
+    private ArrayList<MappedByteBuffer> unforcedList = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * Converts formatted text to bytes.
+     */
+    private CharsetEncoder encoder;
+
+    /**
+     * Reused buffer for formatted records.
+     */
+    private StringBuilder text = new StringBuilder(256);
+
+    /**
+     * Periodically forces regions to disk, or null if that is not done.
+     */
+    private Thread forcer = null;
+
+    /**
+     * Held while forcing regions outside the handler's lock, and while
+     * truncating and closing the file, so that a region is never forced after
+     * the file has been truncated under it.
+     */
+    private final Object forceLock = new Object();
+
+    /**
+     * Regions taken by the force thread that it may not have forced yet.  Set
+     * while holding the handler's lock, forced and cleared while holding
+     * <code>forceLock</code>.
+     */
+    private ArrayList<MappedByteBuffer> forcing = null;
+
+    private volatile boolean closed = false;
+
+
+    /**
+     * Construct a handler configured entirely by the logging properties.
+     *
+     * @throws IOException If the log file can not be opened.
+     */
+    public MappedLogFileHandler() throws IOException {
+        this(null, -1, -1, null);
+    }
+
+
+    /**
+     * Construct a handler that writes to the given file.  Other settings are
+     * taken from the logging properties.
+     *
+     * @param pattern Name of the log file, which may contain <code>%h</code> and <code>%t</code>.
+     * @param limit   Size in bytes at which to roll over, or 0 for no limit.
+     * @param count   Number of files to keep.
+     * @param append  If true, append to an existing file instead of rolling it over.
+     * @throws IOException If the log file can not be opened.
+     */
+    public MappedLogFileHandler(String pattern, long limit, int count, boolean append) throws IOException {
+        this(pattern, limit, count, Boolean.valueOf(append));
+    }
+
+
+    /**
+     * Construct a handler, using the logging properties for any parameter that is not given.
+     */
+    private MappedLogFileHandler(String pattern, long limit, int count, Boolean append) throws IOException {
+        LogProperties properties = new LogProperties(getClass());
+        file = (pattern == null) ? properties.getFile("pattern", "%h/java.log") : LogProperties.expandPattern(pattern);
+        this.limit = Math.max(0, (limit < 0) ? properties.getLong("limit", DEFAULT_LIMIT) : limit);
+        this.count = Math.max(1, (count < 0) ? properties.getInt("count", DEFAULT_COUNT) : count);
+        regionSize = Math.max(MIN_REGION_SIZE, properties.getInt("regionSize", DEFAULT_REGION_SIZE));
+        forceInterval = Math.max(0, properties.getLong("forceInterval", DEFAULT_FORCE_INTERVAL));
+        boolean appending = (append == null) ? properties.getBoolean("append", false) : append;
+
+        setLevel(properties.getLevel("level", Level.ALL));
+        setFormatter(new LogFormatter());
+        try {
+            setEncoding(properties.getString("encoding", null));
+        } catch (UnsupportedEncodingException ex) {
+            setEncoding(null);
+        }
+
+        if (!appending && !rollFilesReported()) {
+            // keep the existing file rather than overwrite it
+            appending = true;
+        }
+        open(appending);
+
+        if (forceInterval > 0) {
+            forcer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    forcePeriodically();
+                }
+            }, getClass().getSimpleName() + " force");
+            forcer.setDaemon(true);
+            forcer.start();
+        }
+    }
+
+
+    /**
+     * Get the file currently being written.
+     *
+     * @return Log file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * Set the character encoding used to write records.
+     *
+     * @param encoding Name of encoding, or null for the platform default.
+     * @throws UnsupportedEncodingException If the encoding is not supported.
+     */
+    @Override
+    public synchronized void setEncoding(String encoding) throws UnsupportedEncodingException {
+        super.setEncoding(encoding);
+        Charset charset = (encoding == null) ? Charset.defaultCharset() : Charset.forName(encoding);
+        encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+
+    /**
+     * Find the end of the text in a file, ignoring the zero bytes that remain
+     * in the last region if the file was not closed.
+     */
+    private static long textSize(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MIN_REGION_SIZE);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while (buffer.hasRemaining() && (channel.read(buffer, start + buffer.position()) != -1)) {
+            }
+            for (int b = buffer.position() - 1; b >= 0; b--) {
+                if (buffer.get(b) != 0) {
+                    return start + b + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+
+    /**
+     * Open the log file and map the first region.
+     *
+     * @param append If true, keep the existing contents.
+     */
+    @SuppressWarnings("resource")
+    private void open(boolean append) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        if (append) {
+            regionStart = textSize(channel);
+        } else {
+            regionStart = 0;
+        }
+        channel.truncate(regionStart);
+        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+        LogFormatter.forgetTraces(getFormatter());
+        String head = getFormatter().getHead(this);
+        if ((head != null) && (head.length() > 0) && (regionStart == 0)) {
+            write(head);
+        }
+    }
+
+
+    /**
+     * Get the number of bytes written to the file.
+     */
+    private long position() {
+        return regionStart + region.position();
+    }
+
+
+    /**
+     * Map the region that follows the current one.
+     */
+    private void nextRegion() throws IOException {
+        if (forcer != null) {
+            unforcedList.add(region);
+        }
+        regionStart += region.position();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+    }
+
+
+    /**
+     * Encode text into the mapped regions, mapping more as needed.
+     */
+    private void write(CharSequence chars) throws IOException {
+        CharBuffer in = CharBuffer.wrap(chars);
+        encoder.reset();
+        while (encoder.encode(in, region, true).isOverflow()) {
+            nextRegion();
+        }
+        while (encoder.flush(region).isOverflow()) {
+            nextRegion();
+        }
+    }
+
+
+    /**
+     * Force all written regions to disk.
+     */
+    private void forceAll() {
+        for (MappedByteBuffer buffer : unforcedList) {
+            buffer.force();
+        }
+        unforcedList.clear();
+        if (region != null) {
+            region.force();
+        }
+    }
+
+
+    /**
+     * Write the formatter's tail, force the written data to disk, remove the
+     * unused part of the last region, and close the file.
+     */
+    private void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            String tail = getFormatter().getTail(this);
+            if ((tail != null) && (tail.length() > 0)) {
+                write(tail);
+            }
+            forceAll();
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+        }
+        long size = position();
+        // Drop the regions so that they can be unmapped.  Some systems, such
+        // as Windows, can not truncate or rename a file while it is mapped.
+        region = null;
+        unforcedList.clear();
+        synchronized (forceLock) {
+            // regions the force thread has taken belong to this file, so force
+            // them before the file is truncated under them
+            if (forcing != null) {
+                forceList(forcing);
+                forcing = null;
+            }
+            try {
+                channel.truncate(size);
+            } catch (Exception ex) {
+                reportError("Unable to truncate " + file.getAbsolutePath(), ex, ErrorManager.CLOSE_FAILURE);
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+                }
+                channel = null;
+            }
+        }
+    }
+
+
+    /**
+     * Get the name of a rolled over file.
+     *
+     * @param file       Current file.
+     * @param generation Generation of file, 0 being the current one.
+     * @return File for that generation.
+     */
+    static File generation(File file, int generation) {
+        return (generation == 0) ? file : new File(file.getPath() + "." + generation);
+    }
+
+
+    /**
+     * Shift each file to the next generation, deleting the oldest, so that
+     * <code>count</code> files are kept including the current one.
+     *
+     * @param file  Current file.
+     * @param count Number of files to keep.
+     * @throws IOException If a file could not be deleted or renamed.  The
+     *                     remaining files are still rolled over.
+     */
+    static void rollFiles(File file, int count) throws IOException {
+        StringBuilder failures = new StringBuilder();
+        for (int g = count - 1; g >= 0; g--) {
+            File from = generation(file, g);
+            if (from.exists()) {
+                File to = generation(file, g + 1);
+                if (g == count - 1) {
+                    if (!from.delete()) {
+                        failures.append("  Unable to delete ").append(from.getAbsolutePath());
+                    }
+                } else if (to.exists() && !to.delete()) {
+                    failures.append("  Unable to delete ").append(to.getAbsolutePath());
+                } else if (!from.renameTo(to)) {
+                    failures.append("  Unable to rename ").append(from.getAbsolutePath()).append(" to ").append(to.getAbsolutePath());
+                }
+            }
+        }
+        if (failures.length() > 0) {
+            throw new IOException("Unable to roll over log files." + failures);
+        }
+    }
+
+
+    /**
+     * Roll the files over, reporting any failure.
+     *
+     * @return True if the current file was rolled over.
+     */
+    private boolean rollFilesReported() {
+        try {
+            rollFiles(file, count);
+        } catch (IOException ex) {
+            reportError(null, ex, ErrorManager.OPEN_FAILURE);
+        }
+        return !file.exists();
+    }
+
+
+    /**
+     * Close the current file, roll the files over, and start a new file.  If
+     * the current file could not be rolled over, it is appended to.
+     */
+    private void roll() {
+        closeFile();
+        boolean rolled = rollFilesReported();
+        try {
+            open(!rolled);
+        } catch (IOException ex) {
+            reportError(null, ex, ErrorManager.OPEN_FAILURE);
+        }
+    }
+
+
+    /**
+     * Format and write a record, rolling over the file if it has reached the size limit.
+     *
+     * @param record Record to publish.
+     */
+    @Override
+    public synchronized void publish(LogRecord record) {
+        if (closed || (channel == null) || !isLoggable(record)) {
+            return;
+        }
+        if (text.capacity() > MAX_RETAINED_CAPACITY) {
+            text = new StringBuilder(256);
+        }
+        text.setLength(0);
+        try {
+            Formatter formatter = getFormatter();
+            if (formatter instanceof LogFormatter) {
+                ((LogFormatter) formatter).format(record, text);
+            } else {
+                text.append(formatter.format(record));
+            }
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+            return;
+        }
+        try {
+            write(text);
+        } catch (Exception ex) {
+            reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            return;
+        }
+        if ((limit > 0) && (position() >= limit)) {
+            roll();
+        }
+    }
+
+
+    /**
+     * Force everything written so far to disk.
+     */
+    @Override
+    public synchronized void flush() {
+        if (channel != null) {
+            forceAll();
+        }
+    }
+
+
+    /**
+     * Force and clear a list of regions taken by the force thread.  Must be
+     * called while holding <code>forceLock</code>.
+     */
+    private void forceList(ArrayList<MappedByteBuffer> list) {
+        for (MappedByteBuffer buffer : list) {
+            buffer.force();
+        }
+        list.clear();
+    }
+
+
+    /**
+     * Body of the force thread.  The filled regions and the region being
+     * written are taken from the handler while holding its lock, but forced
+     * without it so that publishing is not held up by the disk.  If the file
+     * is closed before they are forced, closing forces them before truncating
+     * the file, so every region taken is forced exactly once and never after
+     * the file has been truncated under it.
+     */
+    private void forcePeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(forceInterval);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            ArrayList<MappedByteBuffer> forceList;
+            synchronized (this) {
+                if (closed || (region == null)) {
+                    continue;
+                }
+                forceList = unforcedList;
+                forceList.add(region);
+                unforcedList = new ArrayList<MappedByteBuffer>();
+                synchronized (forceLock) {
+                    forcing = forceList;
+                }
+            }
+            synchronized (forceLock) {
+                // empty if closing the file has already forced them
+                forceList(forceList);
+                if (forcing == forceList) {
+                    forcing = null;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Write everything to disk and close the file.
+     */
+    @Override
+    public void close() throws SecurityException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeFile();
+        }
+        if (forcer != null) {
+            forcer.interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A <code>NodeList</code> backed by an array, used to return nodes that were
+ * found without going through an XPath engine.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class NodeArrayList extends ArrayList<Node> implements NodeList {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = -2905380962245312784L;
+
+    @Override
+    public Node item(int index) {
+        return ((index >= 0) && (index < size())) ? get(index) : null;
+    }
+
+    @Override
+    public int getLength() {
+        return size();
+    }
+
+}
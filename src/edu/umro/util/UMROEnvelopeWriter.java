@@ -0,0 +1,202 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Write <code>UMROEnvelope</code> responses and exceptions directly to a
+ * destination without building intermediate strings.  Text content is
+ * escaped in a single pass as it is written.
+ * <p>
+ * The output is identical to that of <code>UMROException.toXML</code> and
+ * <code>UMROException.serializedResponse</code>, which are implemented with
+ * this class.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class UMROEnvelopeWriter {
+
+    /**
+     * Encoding used when writing to an <code>OutputStream</code>.
+     */
+    private static final Charset ENCODING = StandardCharsets.UTF_8;
+
+    /**
+     * Passes characters through <code>XML.escapeSpecialChars</code> on their
+     * way to the destination so that a stack trace can be printed directly
+     * into the document.
+     */
+    private static class EscapingWriter extends Writer {
+        private final Appendable out;
+
+        EscapingWriter(Appendable out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            XML.escapeSpecialChars(CharBuffer.wrap(cbuf, off, len), out);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            XML.escapeSpecialChars(str.subSequence(off, off + len), out);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Write an element containing escaped text on a line of its own.
+     */
+    private static void writeElement(Appendable out, String indent, String name, String value) throws IOException {
+        out.append(indent).append('<').append(name).append('>');
+        XML.escapeSpecialChars(value, out);
+        out.append("</").append(name).append(">\n");
+    }
+
+    /**
+     * Write the XML version of an exception.
+     *
+     * @param out              Destination.
+     * @param throwable        Exception whose class name is recorded, may be null.
+     * @param code             Unique code identifying this type of exception.
+     * @param what             Description of error.
+     * @param scope            Scope of the impact of the error.
+     * @param action           Corrective action to be taken.
+     * @param more             Additional background or suggestions.
+     * @param progammerMessage Technical description of error to aid software developers.
+     * @param stackTrace       If not null, the stack trace of this is appended to the programmer message.
+     * @throws IOException If the destination can not be written.
+     */
+    private static void writeException(Appendable out, Throwable throwable, long code, String what, String scope, String action,
+                                       String more, String progammerMessage, Throwable stackTrace) throws IOException {
+        out.append("<Exception");
+        if (code != UMROException.UNDEFINED_CODE) {
+            out.append(" Code='").append(Long.toString(code)).append('\'');
+        }
+        out.append(" Name='").append(((throwable == null) ? Exception.class : throwable.getClass()).getName()).append("'>\n");
+        out.append("  <Code>").append(Long.toString(code)).append("</Code>\n");
+        out.append("  <UserMessage>\n");
+        writeElement(out, "    ", "What", what);
+        writeElement(out, "    ", "Scope", scope);
+        writeElement(out, "    ", "Action", action);
+        writeElement(out, "    ", "More", more);
+        out.append("  </UserMessage>\n");
+        out.append("  <ProgrammerMessage>");
+        XML.escapeSpecialChars(progammerMessage, out);
+        if (stackTrace != null) {
+            out.append('\n');
+            PrintWriter printWriter = new PrintWriter(new EscapingWriter(out));
+            stackTrace.printStackTrace(printWriter);
+            printWriter.flush();
+        }
+        out.append("</ProgrammerMessage>\n");
+        out.append("</Exception>");
+    }
+
+    /**
+     * Write the XML version of an exception.  This produces the same text as
+     * <code>UMROException.toXML(throwable, code, what, scope, action, more, progammerMessage)</code>.
+     *
+     * @param out              Destination.
+     * @param throwable        Exception whose class name is recorded, may be null.
+     * @param code             Unique code identifying this type of exception.
+     * @param what             Description of error.
+     * @param scope            Scope of the impact of the error.
+     * @param action           Corrective action to be taken.
+     * @param more             Additional background or suggestions.
+     * @param progammerMessage Technical description of error to aid software developers.
+     * @throws IOException If the destination can not be written.
+     */
+    public static void writeException(Appendable out, Throwable throwable, long code, String what, String scope, String action,
+                                      String more, String progammerMessage) throws IOException {
+        writeException(out, throwable, code, what, scope, action, more, progammerMessage, null);
+    }
+
+    /**
+     * Write the XML version of an exception with its current stack trace appended to
+     * the programmer message.  This produces the same text as <code>exception.toXML()</code>.
+     *
+     * @param out       Destination.
+     * @param exception Exception to write.
+     * @throws IOException If the destination can not be written.
+     */
+    public static void writeException(Appendable out, UMROException exception) throws IOException {
+        writeException(out, exception, exception.code, exception.what, exception.scope, exception.action,
+                exception.more, exception.progammerMessage, exception);
+    }
+
+    /**
+     * Write a serialized response for an exception.  This produces the same text as
+     * <code>UMROException.serializedResponse</code>.
+     *
+     * @param out            Destination.
+     * @param service        Name of originating service.
+     * @param serviceVersion UtilVersion of originating service.
+     * @param method         Server method that was invoked.
+     * @param exception      Exception that was thrown.
+     * @throws IOException If the destination can not be written.
+     */
+    public static void writeResponse(Appendable out, String service, String serviceVersion, String method, Exception exception) throws IOException {
+        String timeStamp;
+        synchronized (UMROException.timeStampFormat) {
+            timeStamp = UMROException.timeStampFormat.format(new Date());
+        }
+        out.append("<UMROEnvelope Time='").append(timeStamp).append("'>\n");
+        out.append("  <Response>\n");
+        out.append("    <").append(service).append(" UtilVersion='").append(serviceVersion).append("'>\n");
+        out.append("      <").append(method).append(">\n");
+        if (exception instanceof UMROException) {
+            writeException(out, (UMROException) exception);
+        } else {
+            writeException(out, exception, UMROException.UNDEFINED_CODE, "", "", "", "", exception.getMessage());
+        }
+        out.append("      </").append(method).append(">\n");
+        out.append("    </").append(service).append(">\n");
+        out.append("  </Response>\n");
+        out.append("</UMROEnvelope>\n");
+    }
+
+    /**
+     * Write a serialized response for an exception to a stream, encoded as UTF-8.
+     * The stream is flushed but not closed.
+     *
+     * @param out            Destination.
+     * @param service        Name of originating service.
+     * @param serviceVersion UtilVersion of originating service.
+     * @param method         Server method that was invoked.
+     * @param exception      Exception that was thrown.
+     * @throws IOException If the destination can not be written.
+     */
+    public static void writeResponse(OutputStream out, String service, String serviceVersion, String method, Exception exception) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, ENCODING));
+        writeResponse(writer, service, serviceVersion, method, exception);
+        writer.flush();
+    }
+
+}
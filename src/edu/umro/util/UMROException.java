@@ -113,10 +113,23 @@ public class UMROException extends Exception {
     }
 
 
+    /**
+     * Paths of the values read from an XML version of an exception.
+     */
+    private static final XMLQuery EXCEPTION_QUERY = new XMLQuery(
+            "Code/text()",
+            "UserMessage/What/text()",
+            "UserMessage/Scope/text()",
+            "UserMessage/Action/text()",
+            "UserMessage/More/text()",
+            "ProgrammerMessage/text()");
+
+
     public UMROException(Node node) throws UMROException {
         super(XML.domToString(node));
+        String[] valueList = EXCEPTION_QUERY.getValues(node);
         try {
-            String codeText = XML.getValue(node, "Code/text()");
+            String codeText = valueList[0];
             if (codeText == null) {
                 code = 0;
             } else {
@@ -125,11 +138,11 @@ public class UMROException extends Exception {
         } catch (NumberFormatException ex) {
             code = -1;
         }
-        what = XML.getValue(node, "UserMessage/What/text()");
-        scope = XML.getValue(node, "UserMessage/Scope/text()");
-        action = XML.getValue(node, "UserMessage/Action/text()");
-        more = XML.getValue(node, "UserMessage/More/text()");
-        progammerMessage = XML.getValue(node, "ProgrammerMessage/text()");
+        what = valueList[1];
+        scope = valueList[2];
+        action = valueList[3];
+        more = valueList[4];
+        progammerMessage = valueList[5];
     }
 
 
@@ -145,20 +158,13 @@ public class UMROException extends Exception {
      * @return XML string representing the exception.
      */
     public static String toXML(Throwable throwable, long code, String what, String scope, String action, String more, String progammerMessage) {
-        String codeString = (code == -1) ? "" : (" Code='" + code + "'");
-        throwable = (throwable == null) ? (new Exception(progammerMessage)) : throwable;
-        String text =
-                "<Exception" + codeString + " Name='" + throwable.getClass().getName() + "'>\n" +
-                        "  <Code>" + code + "</Code>\n" +
-                        "  <UserMessage>\n" +
-                        "    <What>" + XML.escapeSpecialChars(what) + "</What>\n" +
-                        "    <Scope>" + XML.escapeSpecialChars(scope) + "</Scope>\n" +
-                        "    <Action>" + XML.escapeSpecialChars(action) + "</Action>\n" +
-                        "    <More>" + XML.escapeSpecialChars(more) + "</More>\n" +
-                        "  </UserMessage>\n" +
-                        "  <ProgrammerMessage>" + XML.escapeSpecialChars(progammerMessage) + "</ProgrammerMessage>\n" +
-                        "</Exception>";
-        return text;
+        StringBuilder text = new StringBuilder(512);
+        try {
+            UMROEnvelopeWriter.writeException(text, throwable, code, what, scope, action, more, progammerMessage);
+        } catch (IOException ex) {
+            // a StringBuilder does not throw IOException
+        }
+        return text.toString();
     }
 
 
@@ -169,14 +175,20 @@ public class UMROException extends Exception {
      * @return This exception as an XML string.
      */
     public String toXML() {
-        StringWriter sw = new StringWriter();
-        printStackTrace(new PrintWriter(sw));
-        return toXML(this, code, what, scope, action, more, progammerMessage + "\n" + sw.toString());
+        StringBuilder text = new StringBuilder(2048);
+        try {
+            UMROEnvelopeWriter.writeException(text, this);
+        } catch (IOException ex) {
+            // a StringBuilder does not throw IOException
+        }
+        return text.toString();
     }
 
 
     /**
-     * Construct a serialized response for an exception.
+     * Construct a serialized response for an exception.  Use
+     * <code>UMROEnvelopeWriter</code> to write the response directly
+     * to a stream.
      *
      * @param service        Name of originating service.
      * @param serviceVersion UtilVersion of originating service.
@@ -185,24 +197,13 @@ public class UMROException extends Exception {
      * @return XML string encapsulating the exception.
      */
     public static String serializedResponse(String service, String serviceVersion, String method, Exception exception) {
-
-        String content = null;
-        if (exception instanceof UMROException) {
-            content = ((UMROException) exception).toXML();
-        } else {
-            content = toXML(exception, UNDEFINED_CODE, "", "", "", "", exception.getMessage());
+        StringBuilder text = new StringBuilder(4096);
+        try {
+            UMROEnvelopeWriter.writeResponse(text, service, serviceVersion, method, exception);
+        } catch (IOException ex) {
+            // a StringBuilder does not throw IOException
         }
-
-        return
-                "<UMROEnvelope Time='" + timeStampFormat.format(new Date()) + "'>\n" +
-                        "  <Response>\n" +
-                        "    <" + service + " UtilVersion='" + serviceVersion + "'>\n" +
-                        "      <" + method + ">\n" +
-                        content +
-                        "      </" + method + ">\n" +
-                        "    </" + service + ">\n" +
-                        "  </Response>\n" +
-                        "</UMROEnvelope>\n";
+        return text.toString();
     }
 
     @Override
@@ -17,6 +17,8 @@ package edu.umro.util;
  */
 
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.text.*;
 import java.util.*;
 
@@ -31,7 +33,27 @@ public class Utility {
     /**
      * Number of bytes in a single buffer for reading.
      */
-    private final static int BUFFER_SIZE = 1024 * 1024;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Buffers and decoder used by a single thread to read text.
+     */
+    private static final class TextReadBuffers {
+        final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        CharsetDecoder decoder = null;
+    }
+
+    /**
+     * Reading buffers for each thread, so that reading many small files does
+     * not allocate large buffers each time.
+     */
+    private static final ThreadLocal<TextReadBuffers> textReadBuffers = new ThreadLocal<TextReadBuffers>() {
+        @Override
+        protected TextReadBuffers initialValue() {
+            return new TextReadBuffers();
+        }
+    };
 
     /**
      * Format a date in a thread safe way.  Note that the entire application has to use this or threads could
@@ -169,17 +191,30 @@ public class Utility {
 
 
     /**
-     * Read a file into a String.  If there is any problem, throw an exception.
+     * Read a file into a String using the platform's default character set.
+     * If there is any problem, throw an exception.
      *
      * @param file The file to read.
      * @return Contents of file, or null if not found, null file
      * name, can not read, etc.
      */
     public static String readFile(File file) throws UMROException {
+        return readFile(file, Charset.defaultCharset());
+    }
+
+
+    /**
+     * Read a file into a String.  If there is any problem, throw an exception.
+     *
+     * @param file    The file to read.
+     * @param charset Encoding of the file.
+     * @return Contents of file.
+     */
+    public static String readFile(File file, Charset charset) throws UMROException {
         FileInputStream fileInputStream = null;
         try {
             fileInputStream = new FileInputStream(file);
-            return readInputStream(fileInputStream);
+            return readInputStream(fileInputStream, charset, file.length());
         } catch (FileNotFoundException ex) {
             throw new UMROException("Error, file '" + file.getAbsolutePath() + "' not found. Exception: " + ex);
         } catch (IOException ex) {
@@ -231,20 +266,82 @@ public class Utility {
 
 
     /**
-     * Read the entire given input stream into a string.
+     * Read the entire given input stream into a string using the platform's
+     * default character set.
      *
      * @param inputStream Read from here.
      * @return String representation of input.
      * @throws IOException
      */
     public static String readInputStream(InputStream inputStream) throws IOException {
-        byte[] data = new byte[BUFFER_SIZE];
-        StringBuffer text = new StringBuffer("");
-        int size = data.length;
-        while (size == data.length) {
-            size = inputStream.read(data);
-            text.append(new String(data, 0, size));
+        return readInputStream(inputStream, Charset.defaultCharset(), 0);
+    }
+
+
+    /**
+     * Read the entire given input stream into a string.
+     *
+     * @param inputStream Read from here.
+     * @param charset     Encoding of the input.
+     * @return String representation of input.
+     * @throws IOException
+     */
+    public static String readInputStream(InputStream inputStream, Charset charset) throws IOException {
+        return readInputStream(inputStream, charset, 0);
+    }
+
+
+    /**
+     * Read the entire given input stream into a string, until the end of the
+     * stream.  The input is decoded as it is read, so characters that span
+     * two reads are decoded correctly.  Malformed input is replaced, as
+     * <code>String</code> does.
+     *
+     * @param inputStream Read from here.
+     * @param charset     Encoding of the input.
+     * @param sizeHint    Expected size of the input in bytes, or 0 if not known.
+     * @return String representation of input.
+     * @throws IOException
+     */
+    private static String readInputStream(InputStream inputStream, Charset charset, long sizeHint) throws IOException {
+        TextReadBuffers buffers = textReadBuffers.get();
+        CharsetDecoder decoder = buffers.decoder;
+        if ((decoder == null) || !decoder.charset().equals(charset)) {
+            decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            buffers.decoder = decoder;
+        } else {
+            decoder.reset();
+        }
+        ByteBuffer bytes = buffers.bytes;
+        CharBuffer chars = buffers.chars;
+        bytes.clear();
+        chars.clear();
+
+        long capacity = (long) (sizeHint * (double) decoder.averageCharsPerByte()) + 16;
+        StringBuilder text = new StringBuilder((int) Math.min(capacity, Integer.MAX_VALUE - 16));
+        boolean end = false;
+        while (!end) {
+            int size = inputStream.read(bytes.array(), bytes.position(), bytes.remaining());
+            if (size == -1) {
+                end = true;
+            } else {
+                bytes.position(bytes.position() + size);
+            }
+            bytes.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, end);
+                text.append(chars.array(), 0, chars.position());
+                chars.clear();
+            } while (result.isOverflow());
+            bytes.compact();
+        }
+        while (decoder.flush(chars).isOverflow()) {
+            text.append(chars.array(), 0, chars.position());
+            chars.clear();
         }
+        text.append(chars.array(), 0, chars.position());
+        chars.clear();
 
         return text.toString();
     }
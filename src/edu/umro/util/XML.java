@@ -25,6 +25,9 @@ import javax.xml.transform.dom.*;
 import javax.xml.transform.stream.*;
 import javax.xml.xpath.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 
 /**
  * Interface method for reading XML.
@@ -34,16 +37,82 @@ import java.io.*;
 public class XML {
 
     /**
-     * List of characters in XML that require special treatment.  Note that the
-     * processing loop that uses this list requires that the & be first in the list,
-     * otherwise it could be interpreted recursively.
+     * Files at least this large are memory mapped rather than read when parsed.
      */
-    private static final char[] SPECIAL_CHARS = {'&', '<', '>', '"', '\''};
+    private static final long MAP_THRESHOLD = 1024 * 1024;
 
     /**
-     * List of characters in XML that require special treatment.
+     * Maximum number of compiled paths cached by each thread.
      */
-    private static final String[] SPECIAL_CHAR_NAME = {"&amp;", "&lt;", "&gt;", "&quot;", "&apos;"};
+    private static final int XPATH_CACHE_SIZE = 256;
+
+    /**
+     * Compiles and caches paths for a single thread.  Paths in the simple
+     * subset understood by <code>XMLSimplePath</code> are evaluated by walking
+     * the DOM directly, which is much faster than XPath.  Everything else is
+     * compiled to an <code>XPathExpression</code>.
+     * <p>
+     * Neither <code>XPath</code> nor <code>XPathExpression</code> is thread
+     * safe, so each thread gets its own instance, which also means that
+     * evaluation needs no lock.
+     */
+    private static class XPathCompiler {
+        private final XPath xPath = XPathFactory.newInstance().newXPath();
+        private final LRUCache<String, Object> cache = new LRUCache<String, Object>(XPATH_CACHE_SIZE);
+
+        /**
+         * Get the compiled form of a path.
+         *
+         * @return Either an <code>XMLSimplePath</code> or an <code>XPathExpression</code>.
+         */
+        Object compile(String path) throws XPathExpressionException {
+            Object compiled = cache.get(path);
+            if (compiled == null) {
+                compiled = XMLSimplePath.parse(path);
+                if (compiled == null) {
+                    compiled = xPath.compile(path);
+                }
+                cache.put(path, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * Per-thread XPath compiler and expression cache.
+     */
+    private static final ThreadLocal<XPathCompiler> xPathCompiler = new ThreadLocal<XPathCompiler>() {
+        @Override
+        protected XPathCompiler initialValue() {
+            return new XPathCompiler();
+        }
+    };
+
+    /**
+     * Holds a namespace aware <code>DocumentBuilder</code> for a single thread.
+     * Builders are not thread safe, but can be reused after a reset, which
+     * avoids both the factory lookup and the need for a global lock.
+     */
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * Get the document builder for the current thread, creating it if necessary.
+     *
+     * @return A document builder ready for use.
+     * @throws ParserConfigurationException If a builder can not be created.
+     */
+    private static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = documentBuilder.get();
+        if (builder == null) {
+            DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+            domFactory.setNamespaceAware(true);
+            builder = domFactory.newDocumentBuilder();
+            documentBuilder.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
 
     /**
      * Use XPATH to grab a single text value from an XML node.
@@ -55,15 +124,24 @@ public class XML {
      * @return The value of the item in the node, or, null if
      * the path was bad or the item had no value.
      */
-    public static synchronized String getValue(Node node, String path) throws UMROException {
+    public static String getValue(Node node, String path) throws UMROException {
         if (node == null) {
             throw new UMROException("Util.getValue was given null node with path '" + path + ".");
         }
         String value = null;
 
-        NodeList nodeList = getMultipleNodes(node, path);
-        if ((nodeList != null) && (nodeList.getLength() > 0)) {
-            value = nodeList.item(0).getNodeValue();
+        Object compiled = compile(path);
+        if (compiled instanceof XMLSimplePath) {
+            NodeArrayList nodeList = new NodeArrayList();
+            ((XMLSimplePath) compiled).select(node, nodeList, true);
+            if (!nodeList.isEmpty()) {
+                value = nodeList.get(0).getNodeValue();
+            }
+        } else {
+            NodeList nodeList = evaluate(node, (XPathExpression) compiled, path);
+            if ((nodeList != null) && (nodeList.getLength() > 0)) {
+                value = nodeList.item(0).getNodeValue();
+            }
         }
 
         return value;
@@ -91,26 +169,56 @@ public class XML {
 
     /**
      * Use XPATH to grab multiple node values from an XML node.
+     * <p>
+     * Compiled paths are cached per thread, so repeated use of the
+     * same path is cheap.  Simple paths made only of child steps, such as
+     * <code>UserMessage/What/text()</code>, are evaluated by walking the DOM
+     * without using XPath.  Note that a DOM is not thread safe, so callers
+     * sharing a document between threads must synchronize on it themselves.
      *
      * @param node XML node containing value.
      * @param path XPATH specification.
      * @return A list of nodes.  If the path is invalid, then
      * return an empty list.
      */
-    public static synchronized NodeList getMultipleNodes(Node node, String path) throws UMROException {
+    public static NodeList getMultipleNodes(Node node, String path) throws UMROException {
         if (node == null) {
             throw new UMROException("getMultipleNodes was given null node with path '" + path + ".");
         }
-        NodeList nodeList = null;
+        Object compiled = compile(path);
+        if (compiled instanceof XMLSimplePath) {
+            NodeArrayList nodeList = new NodeArrayList();
+            ((XMLSimplePath) compiled).select(node, nodeList, false);
+            return nodeList;
+        }
+        return evaluate(node, (XPathExpression) compiled, path);
+    }
+
+
+    /**
+     * Get the compiled form of a path from this thread's cache.
+     *
+     * @param path XPATH specification.
+     * @return Either an <code>XMLSimplePath</code> or an <code>XPathExpression</code>.
+     */
+    private static Object compile(String path) throws UMROException {
         try {
-            XPathFactory factory = XPathFactory.newInstance();
-            XPath xPath = factory.newXPath();
-            XPathExpression expr = xPath.compile(path);
-            nodeList = (NodeList) (expr.evaluate(node, XPathConstants.NODESET));
+            return xPathCompiler.get().compile(path);
+        } catch (XPathExpressionException ex) {
+            throw new UMROException("The path for getMultipleNodes is not valid: " + path);
+        }
+    }
+
+
+    /**
+     * Evaluate a compiled XPath expression.
+     */
+    private static NodeList evaluate(Node node, XPathExpression expr, String path) throws UMROException {
+        try {
+            return (NodeList) (expr.evaluate(node, XPathConstants.NODESET));
         } catch (XPathExpressionException ex) {
             throw new UMROException("The path for getMultipleNodes is not valid: " + path);
         }
-        return nodeList;
     }
 
 
@@ -136,20 +244,15 @@ public class XML {
 
 
     /**
-     * Convert XML document text to a DOM.  Throw a
-     * RemoteException if there is a problem.
+     * Parse a document with this thread's builder.
      *
-     * @param xmlText Text to parse.
-     * @return DOM version of XML text.
+     * @param inputSource Document to parse.
+     * @return DOM version of XML.
      */
-    public static synchronized Document parseToDocument(String xmlText) throws UMROException {
-        xmlText = xmlText.substring(xmlText.indexOf('<'));
+    private static Document parse(InputSource inputSource) throws UMROException {
         Document document = null;
         try {
-            DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-            domFactory.setNamespaceAware(true);
-            DocumentBuilder builder = domFactory.newDocumentBuilder();
-            document = builder.parse(new InputSource(new StringReader(xmlText)));
+            document = getDocumentBuilder().parse(inputSource);
         } catch (IOException ex) {
             throw new UMROException("IOException while parsing document: " + ex);
         } catch (ParserConfigurationException ex) {
@@ -162,83 +265,369 @@ public class XML {
 
 
     /**
-     * Convert a node into nicely formatted XML text.  The text is a
-     * stand-alone XML document.
+     * Determine if the given byte may start a byte order mark, in which
+     * case the leading bytes are not junk and must be kept so that the
+     * parser can determine the encoding.
+     */
+    private static boolean isByteOrderMark(int b) {
+        return (b == 0xef) || (b == 0xfe) || (b == 0xff);
+    }
+
+
+    /**
+     * Convert XML document text to a DOM.  Throw a
+     * RemoteException if there is a problem.
+     * <p>
+     * Each thread reuses its own parser, so documents may be parsed
+     * concurrently.
      *
-     * @param node The node to convert.
-     * @return The text representation of the node.
+     * @param xmlText Text to parse.
+     * @return DOM version of XML text.
      */
-    public static String domToString(Node node) throws UMROException {
+    public static Document parseToDocument(String xmlText) throws UMROException {
+        StringReader reader = new StringReader(xmlText);
+        try {
+            reader.skip(Math.max(0, xmlText.indexOf('<')));
+        } catch (IOException ex) {
+            throw new UMROException("IOException while parsing document: " + ex);
+        }
+        return parse(new InputSource(reader));
+    }
 
-        // Use a Transformer for output
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = null;
+
+    /**
+     * Convert an encoded XML document to a DOM.  Any junk before the first
+     * <code>&lt;</code> is ignored, and the parser determines the encoding
+     * from the byte order mark or XML declaration.  The array is not copied.
+     *
+     * @param xmlBytes Encoded document.
+     * @return DOM version of XML.
+     */
+    public static Document parseToDocument(byte[] xmlBytes) throws UMROException {
+        int start = 0;
+        if ((xmlBytes.length == 0) || !isByteOrderMark(xmlBytes[0] & 0xff)) {
+            while ((start < xmlBytes.length) && (xmlBytes[start] != '<')) {
+                start++;
+            }
+        }
+        return parse(new InputSource(new ByteArrayInputStream(xmlBytes, start, xmlBytes.length - start)));
+    }
+
+
+    /**
+     * Convert an XML document read from a stream to a DOM.  Any junk before the
+     * first <code>&lt;</code> is ignored, and the parser determines the encoding
+     * from the byte order mark or XML declaration.  The stream is not closed.
+     *
+     * @param inputStream Encoded document.
+     * @return DOM version of XML.
+     */
+    public static Document parseToDocument(InputStream inputStream) throws UMROException {
+        PushbackInputStream pushback = new PushbackInputStream(inputStream, 1);
         try {
-            transformer = tFactory.newTransformer();
-        } catch (TransformerConfigurationException ex) {
-            throw new UMROException("Util.domToString: Unable to create transformer.  Exception: " + ex);
+            int b = pushback.read();
+            if (!isByteOrderMark(b)) {
+                while ((b != -1) && (b != '<')) {
+                    b = pushback.read();
+                }
+            }
+            if (b != -1) {
+                pushback.unread(b);
+            }
+        } catch (IOException ex) {
+            throw new UMROException("IOException while parsing document: " + ex);
         }
+        return parse(new InputSource(pushback));
+    }
+
 
-        DOMSource source = new DOMSource(node);
-        ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream();
-        StreamResult streamResult = new StreamResult(byteOutStream);
+    /**
+     * Convert an XML document held in a buffer to a DOM.  The bytes between the
+     * buffer's position and limit are parsed in place, and the buffer's position
+     * is not changed.  Any junk before the first <code>&lt;</code> is ignored.
+     *
+     * @param xmlBuffer Encoded document.
+     * @return DOM version of XML.
+     */
+    public static Document parseToDocument(ByteBuffer xmlBuffer) throws UMROException {
+        ByteBuffer buffer = xmlBuffer.duplicate();
+        if (!(buffer.hasRemaining() && isByteOrderMark(buffer.get(buffer.position()) & 0xff))) {
+            while (buffer.hasRemaining() && (buffer.get(buffer.position()) != '<')) {
+                buffer.position(buffer.position() + 1);
+            }
+        }
+        return parse(new InputSource(new ByteBufferInputStream(buffer)));
+    }
+
+
+    /**
+     * Convert an XML file to a DOM.  Large files are memory mapped so that
+     * their content is never copied onto the heap.
+     *
+     * @param path File containing document.
+     * @return DOM version of XML.
+     */
+    public static Document parseToDocument(Path path) throws UMROException {
         try {
-            transformer.transform(source, streamResult);
+            long size = Files.size(path);
+            if ((size >= MAP_THRESHOLD) && (size <= Integer.MAX_VALUE)) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    return parseToDocument(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                } finally {
+                    channel.close();
+                }
+            }
+            InputStream inputStream = new BufferedInputStream(Files.newInputStream(path));
+            try {
+                return parseToDocument(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException ex) {
+            throw new UMROException("IOException while parsing document " + path + " : " + ex);
+        }
+    }
+
+
+    /**
+     * Shared factory for creating transformers.  Factories are not thread safe,
+     * so it is only used while holding the class lock.
+     */
+    private static TransformerFactory transformerFactory = null;
+
+    /**
+     * Identity transformer for each thread.  A transformer may be reused by
+     * the thread that owns it once it has been reset.
+     */
+    private static final ThreadLocal<Transformer> transformer = new ThreadLocal<Transformer>();
+
+    /**
+     * Get this thread's identity transformer, creating it if necessary.
+     *
+     * @param indent If true, indent the output.
+     * @return Transformer with default output properties.
+     */
+    private static Transformer getTransformer(boolean indent) throws UMROException {
+        Transformer xform = transformer.get();
+        if (xform == null) {
+            try {
+                synchronized (XML.class) {
+                    if (transformerFactory == null) {
+                        transformerFactory = TransformerFactory.newInstance();
+                    }
+                    xform = transformerFactory.newTransformer();
+                }
+            } catch (TransformerConfigurationException ex) {
+                throw new UMROException("Util.domToString: Unable to create transformer.  Exception: " + ex);
+            }
+            transformer.set(xform);
+        } else {
+            xform.reset();
+        }
+        if (indent) {
+            xform.setOutputProperty(OutputKeys.INDENT, "yes");
+            xform.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        }
+        return xform;
+    }
+
+    /**
+     * Serialize a node with the given transformer.
+     */
+    private static void transform(Transformer xform, Node node, StreamResult streamResult) throws UMROException {
+        try {
+            xform.transform(new DOMSource(node), streamResult);
         } catch (TransformerException ex) {
             throw new UMROException("Util.domToString  Unable to transform DOM to text.  TransformerException: " + ex);
         }
-        String xmlText = byteOutStream.toString();
-        return xmlText;
+    }
+
+
+    /**
+     * Convert a node into nicely formatted XML text.  The text is a
+     * stand-alone XML document.
+     *
+     * @param node The node to convert.
+     * @return The text representation of the node.
+     */
+    public static String domToString(Node node) throws UMROException {
+        StringWriter writer = new StringWriter();
+        transform(getTransformer(false), node, new StreamResult(writer));
+        return writer.toString();
+    }
+
+
+    /**
+     * Write a node as a stand-alone XML document to a stream.  The stream
+     * is not closed.
+     *
+     * @param node     The node to write.
+     * @param out      Destination of document.
+     * @param encoding Character encoding of the output, such as UTF-8.
+     * @param indent   If true, indent nested elements.
+     */
+    public static void writeDom(Node node, OutputStream out, String encoding, boolean indent) throws UMROException {
+        Transformer xform = getTransformer(indent);
+        xform.setOutputProperty(OutputKeys.ENCODING, encoding);
+        transform(xform, node, new StreamResult(out));
+    }
+
+
+    /**
+     * Write a node as a stand-alone XML document to a character stream.  The
+     * writer is not closed.
+     *
+     * @param node   The node to write.
+     * @param out    Destination of document.
+     * @param indent If true, indent nested elements.
+     */
+    public static void writeDom(Node node, Writer out, boolean indent) throws UMROException {
+        transform(getTransformer(indent), node, new StreamResult(out));
+    }
+
+    /**
+     * Get the entity that replaces a character that requires special treatment in XML.
+     *
+     * @param c Character to check.
+     * @return Replacement entity, or null if the character may be used literally.
+     */
+    private static String specialCharName(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&apos;";
+            default:
+                return null;
+        }
     }
 
     /**
      * Translate XML special characters so that they will be interpreted literally.
+     * If there are no special characters then the original string is returned.
      *
      * @param value Text to be translated.
      * @return Text with special characters converted.
      */
     public static String escapeSpecialChars(String value) {
         if (value != null) {
-            for (int c = 0; c < SPECIAL_CHARS.length; c++) {
-                value = value.replaceAll("" + SPECIAL_CHARS[c], SPECIAL_CHAR_NAME[c]);
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                if (specialCharName(value.charAt(i)) != null) {
+                    StringBuilder text = new StringBuilder(len + 16);
+                    try {
+                        escapeSpecialChars(value, text);
+                    } catch (IOException ex) {
+                        // a StringBuilder does not throw IOException
+                    }
+                    return text.toString();
+                }
             }
         }
         return value;
     }
 
+    /**
+     * Translate XML special characters so that they will be interpreted literally,
+     * writing the result to the given destination in a single pass.  A null value
+     * is written as <code>null</code>, the same as string concatenation would.
+     *
+     * @param value Text to be translated.
+     * @param out   Destination of translated text.
+     * @throws IOException If the destination can not be written.
+     */
+    public static void escapeSpecialChars(CharSequence value, Appendable out) throws IOException {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        int len = value.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            String name = specialCharName(value.charAt(i));
+            if (name != null) {
+                out.append(value, start, i);
+                out.append(name);
+                start = i + 1;
+            }
+        }
+        out.append(value, start, len);
+    }
 
-    private static boolean isRegularChar(byte c) {
-        return
-                ((c >= ' ') && (c <= 126)) ||
-                        (c == '\r') ||
-                        (c == '\n') ||
-                        (c == '\t');
+
+    /**
+     * Determine if a character is a control character that should not appear
+     * in XML text.  Tab, carriage return and line feed are allowed.
+     *
+     * @param c Character to check.
+     * @return True if the character is a disallowed control character.
+     */
+    static boolean isControlChar(int c) {
+        return Character.isISOControl(c) && (c != '\t') && (c != '\r') && (c != '\n');
     }
 
 
-    public static void replaceControlCharacters(Node node, char replacement) {
+    /**
+     * Replace the control characters in the value of a single node.  The value
+     * is only copied if it contains a control character.
+     */
+    private static void replaceControlCharactersInValue(Node node, char replacement) {
         String value = node.getNodeValue();
         if (value != null) {
-            boolean modified = false;
-
-            byte[] bytes = value.getBytes();
-            for (int b = 0; b < bytes.length; b++) {
-                if (!isRegularChar(bytes[b])) {
-                    bytes[b] = (byte) replacement;
-                    modified = true;
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                if (isControlChar(value.charAt(i))) {
+                    char[] chars = value.toCharArray();
+                    for (int c = i; c < len; c++) {
+                        if (isControlChar(chars[c])) {
+                            chars[c] = replacement;
+                        }
+                    }
+                    node.setNodeValue(new String(chars));
+                    return;
                 }
             }
-            if (modified) node.setNodeValue(new String(bytes));
         }
+    }
 
-        NamedNodeMap attrList = node.getAttributes();
-        for (int a = 0; (attrList != null) && (a < attrList.getLength()); a++) {
-            replaceControlCharacters(attrList.item(a), replacement);
-        }
 
-        NodeList childNodeList = node.getChildNodes();
-        for (int c = 0; (childNodeList != null) && (c < childNodeList.getLength()); c++) {
-            replaceControlCharacters(childNodeList.item(c), replacement);
+    /**
+     * Replace control characters in the values of the given node, its attributes,
+     * and all of its descendants.  Tab, carriage return and line feed are kept.
+     * The tree is walked iteratively, so deeply nested documents are handled.
+     * <p>
+     * To clean a document before it is parsed, read it through a
+     * <code>ControlCharacterFilterReader</code> or
+     * <code>ControlCharacterFilterInputStream</code> instead.
+     *
+     * @param node        Top of tree to clean.
+     * @param replacement Character to put in place of each control character.
+     */
+    public static void replaceControlCharacters(Node node, char replacement) {
+        Node current = node;
+        while (current != null) {
+            replaceControlCharactersInValue(current, replacement);
+
+            NamedNodeMap attrList = current.getAttributes();
+            for (int a = 0; (attrList != null) && (a < attrList.getLength()); a++) {
+                replaceControlCharactersInValue(attrList.item(a), replacement);
+            }
+
+            Node next = current.getFirstChild();
+            while ((next == null) && (current != node)) {
+                next = current.getNextSibling();
+                if (next == null) {
+                    current = current.getParentNode();
+                }
+            }
+            current = next;
         }
     }
 
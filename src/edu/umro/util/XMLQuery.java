@@ -0,0 +1,228 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A prebuilt set of paths whose values can be fetched from a node in a single
+ * traversal of the DOM.  This is intended for decoding envelopes where many
+ * values are read from the same node.
+ * <p>
+ * The simple paths (see <code>XML.getMultipleNodes</code>) are merged into a
+ * prefix tree when the query is constructed, so steps shared by several paths,
+ * such as <code>UserMessage</code> in <code>UserMessage/What/text()</code> and
+ * <code>UserMessage/Scope/text()</code>, are matched once.  Any other paths
+ * are evaluated individually with <code>XML.getValue</code>.
+ * <p>
+ * Each value is the same as <code>XML.getValue(node, path)</code> would return.
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class XMLQuery {
+
+    /**
+     * One node of the prefix tree.  The root has no step.
+     */
+    private static class PlanNode {
+        final XMLSimplePath.Step step;
+        final ArrayList<PlanNode> childList = new ArrayList<PlanNode>();
+
+        /**
+         * Indexes of paths whose last step is this node.
+         */
+        final ArrayList<Integer> terminalList = new ArrayList<Integer>();
+
+        /**
+         * Indexes of all paths that end at or below this node.
+         */
+        final ArrayList<Integer> pathList = new ArrayList<Integer>();
+
+        PlanNode(XMLSimplePath.Step step) {
+            this.step = step;
+        }
+
+        /**
+         * Get the child for the given step, creating it if necessary.
+         */
+        PlanNode getChild(XMLSimplePath.Step childStep) {
+            for (PlanNode child : childList) {
+                if (child.step.sameAs(childStep)) {
+                    return child;
+                }
+            }
+            PlanNode child = new PlanNode(childStep);
+            childList.add(child);
+            return child;
+        }
+    }
+
+    /**
+     * Paths as given by the caller.
+     */
+    private final String[] pathTextList;
+
+    /**
+     * Parsed version of each path, or null if it is not a simple path.
+     */
+    private final XMLSimplePath[] simplePathList;
+
+    /**
+     * Prefix tree of relative simple paths.
+     */
+    private final PlanNode relativeRoot = new PlanNode(null);
+
+    /**
+     * Prefix tree of absolute simple paths.
+     */
+    private final PlanNode absoluteRoot = new PlanNode(null);
+
+    /**
+     * Construct a query for the given paths.
+     *
+     * @param paths XPath specifications, each expected to end in text() or reference an attribute.
+     */
+    public XMLQuery(String... paths) {
+        pathTextList = paths.clone();
+        simplePathList = new XMLSimplePath[paths.length];
+        for (int p = 0; p < paths.length; p++) {
+            XMLSimplePath simplePath = XMLSimplePath.parse(paths[p]);
+            simplePathList[p] = simplePath;
+            if (simplePath != null) {
+                PlanNode planNode = simplePath.absolute ? absoluteRoot : relativeRoot;
+                planNode.pathList.add(p);
+                for (XMLSimplePath.Step step : simplePath.steps) {
+                    planNode = planNode.getChild(step);
+                    planNode.pathList.add(p);
+                }
+                planNode.terminalList.add(p);
+            }
+        }
+    }
+
+    /**
+     * Construct a query for the given paths.
+     *
+     * @param paths XPath specifications, each expected to end in text() or reference an attribute.
+     */
+    public XMLQuery(Collection<String> paths) {
+        this(paths.toArray(new String[paths.size()]));
+    }
+
+    /**
+     * Get the paths of this query.
+     *
+     * @return Paths in the order given to the constructor.
+     */
+    public String[] getPaths() {
+        return pathTextList.clone();
+    }
+
+    /**
+     * Determine if all of the paths ending at or below a plan node have been resolved.
+     */
+    private static boolean isResolved(PlanNode planNode, Node[] nodeList) {
+        for (int p : planNode.pathList) {
+            if (nodeList[p] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Match a plan node against a DOM node, recording the first node selected by each
+     * path, and then descend into the children of the DOM node once for all of the
+     * child plan nodes.
+     */
+    private void evaluate(PlanNode planNode, Node node, Node[] nodeList) {
+        for (int p : planNode.terminalList) {
+            if (nodeList[p] == null) {
+                nodeList[p] = simplePathList[p].firstTerminal(node);
+            }
+        }
+        if (planNode.childList.isEmpty() || isResolved(planNode, nodeList)) {
+            return;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                for (PlanNode childPlan : planNode.childList) {
+                    if (XMLSimplePath.matches(childPlan.step, (Element) child) && !isResolved(childPlan, nodeList)) {
+                        evaluate(childPlan, child, nodeList);
+                    }
+                }
+                if (isResolved(planNode, nodeList)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the value of every path from the given node.
+     *
+     * @param node XML node containing values.
+     * @return Values in the same order as the paths.  A value is null if the path was not
+     * matched or the item had no value.
+     * @throws UMROException If the node is null or a path is not valid.
+     */
+    public String[] getValues(Node node) throws UMROException {
+        if (node == null) {
+            throw new UMROException("XMLQuery.getValues was given null node.");
+        }
+        Node[] nodeList = new Node[pathTextList.length];
+        // in XPath, attributes do not have children
+        if (node.getNodeType() != Node.ATTRIBUTE_NODE) {
+            evaluate(relativeRoot, node, nodeList);
+        }
+        Document document = (node.getNodeType() == Node.DOCUMENT_NODE) ? (Document) node : node.getOwnerDocument();
+        if (!absoluteRoot.pathList.isEmpty() && (document != null)) {
+            evaluate(absoluteRoot, document, nodeList);
+        }
+
+        String[] valueList = new String[pathTextList.length];
+        for (int p = 0; p < pathTextList.length; p++) {
+            if (simplePathList[p] == null) {
+                valueList[p] = XML.getValue(node, pathTextList[p]);
+            } else if (nodeList[p] != null) {
+                valueList[p] = nodeList[p].getNodeValue();
+            }
+        }
+        return valueList;
+    }
+
+    /**
+     * Get the value of every path from the given node as a map.
+     *
+     * @param node XML node containing values.
+     * @return Map of path to value, in the same order as the paths.  A value is null if the
+     * path was not matched or the item had no value.
+     * @throws UMROException If the node is null or a path is not valid.
+     */
+    public Map<String, String> getValueMap(Node node) throws UMROException {
+        String[] valueList = getValues(node);
+        LinkedHashMap<String, String> valueMap = new LinkedHashMap<String, String>();
+        for (int p = 0; p < pathTextList.length; p++) {
+            valueMap.put(pathTextList[p], valueList[p]);
+        }
+        return valueMap;
+    }
+
+}
@@ -0,0 +1,401 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.w3c.dom.*;
+
+import java.util.*;
+
+/**
+ * A parsed form of the subset of XPath that can be evaluated without
+ * an XPath engine.  A simple path is a series of child element steps,
+ * optionally ending in <code>text()</code> or <code>@attribute</code>,
+ * for example:
+ * <pre>
+ *     Call/&#42;/connect/String[@Name='caseID']/text()
+ *     /UMROEnvelope/@Time
+ *     UserMessage/What
+ * </pre>
+ * Each step is an element name or <code>*</code>, with an optional
+ * predicate of the form <code>[@name='value']</code>.  A leading
+ * <code>/</code> makes the path absolute.  Names may not have a namespace
+ * prefix, and, as in XPath, a name only matches an element that is not in
+ * a namespace.  Namespace declarations are not attributes in XPath, so
+ * <code>xmlns</code> may not be used as an attribute name.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+class XMLSimplePath {
+
+    /**
+     * What the last step of a path selects.
+     */
+    enum Terminal {
+        /** The elements matched by the last step. */
+        ELEMENT,
+        /** The text children of the elements matched by the last step. */
+        TEXT,
+        /** An attribute of the elements matched by the last step. */
+        ATTRIBUTE
+    }
+
+    /**
+     * One child step of a path.
+     */
+    static final class Step {
+
+        /**
+         * Name of element, or null to match any element.
+         */
+        final String name;
+
+        /**
+         * Name of attribute in predicate, or null if there is no predicate.
+         */
+        final String attributeName;
+
+        /**
+         * Required value of the attribute in the predicate.
+         */
+        final String attributeValue;
+
+        Step(String name, String attributeName, String attributeValue) {
+            this.name = name;
+            this.attributeName = attributeName;
+            this.attributeValue = attributeValue;
+        }
+
+        /**
+         * Determine if an element with the given name satisfies the name test of this step.
+         *
+         * @param namespaceURI Namespace of element, may be null or empty.
+         * @param localName    Local name of element.
+         * @return True if the name matches.
+         */
+        boolean matchesName(String namespaceURI, String localName) {
+            return (name == null) || (((namespaceURI == null) || (namespaceURI.length() == 0)) && name.equals(localName));
+        }
+
+        /**
+         * Determine if two steps select the same elements.
+         *
+         * @param other Other step.
+         * @return True if equivalent.
+         */
+        boolean sameAs(Step other) {
+            return General.eqString(name, other.name) &&
+                    General.eqString(attributeName, other.attributeName) &&
+                    General.eqString(attributeValue, other.attributeValue);
+        }
+    }
+
+    /**
+     * Original text of the path.
+     */
+    final String text;
+
+    /**
+     * True if the path starts at the document instead of the context node.
+     */
+    final boolean absolute;
+
+    /**
+     * Child steps, in order.
+     */
+    final Step[] steps;
+
+    /**
+     * What the path selects from the elements matched by the last step.
+     */
+    final Terminal terminal;
+
+    /**
+     * Name of attribute when the terminal is an attribute, otherwise null.
+     */
+    final String terminalAttribute;
+
+    private XMLSimplePath(String text, boolean absolute, Step[] steps, Terminal terminal, String terminalAttribute) {
+        this.text = text;
+        this.absolute = absolute;
+        this.steps = steps;
+        this.terminal = terminal;
+        this.terminalAttribute = terminalAttribute;
+    }
+
+    /**
+     * Find the end of the XML name (without a namespace prefix) that starts at the given position.
+     *
+     * @param path  Text containing name.
+     * @param start Position of first character.
+     * @return Position after the last character of the name, or <code>start</code> if there is no
+     * name or the name is reserved.
+     */
+    private static int nameEnd(String path, int start) {
+        int pos = start;
+        while (pos < path.length()) {
+            char c = path.charAt(pos);
+            boolean ok = Character.isLetter(c) || (c == '_') ||
+                    ((pos > start) && (Character.isDigit(c) || (c == '-') || (c == '.')));
+            if (!ok) {
+                break;
+            }
+            pos++;
+        }
+        if (path.startsWith("xmlns", start) && (pos == start + 5)) {
+            return start;
+        }
+        return pos;
+    }
+
+    /**
+     * Parse a path.  If the path is not in the supported subset, then
+     * return null, in which case the caller should use a full XPath engine.
+     *
+     * @param path XPath text.
+     * @return Parsed path, or null if it is not a simple path.
+     */
+    static XMLSimplePath parse(String path) {
+        if (path == null) {
+            return null;
+        }
+        int len = path.length();
+        int pos = 0;
+        boolean absolute = (len > 0) && (path.charAt(0) == '/');
+        if (absolute) {
+            pos++;
+        }
+
+        ArrayList<Step> stepList = new ArrayList<Step>();
+        Terminal terminal = Terminal.ELEMENT;
+        String terminalAttribute = null;
+
+        while (true) {
+            if (pos >= len) {
+                return null;
+            }
+            char c = path.charAt(pos);
+
+            if (c == '@') {
+                int end = nameEnd(path, pos + 1);
+                if ((end == pos + 1) || (end != len)) {
+                    return null;
+                }
+                terminal = Terminal.ATTRIBUTE;
+                terminalAttribute = path.substring(pos + 1, end);
+                break;
+            }
+
+            if (path.startsWith("text()", pos)) {
+                if (pos + 6 != len) {
+                    return null;
+                }
+                terminal = Terminal.TEXT;
+                break;
+            }
+
+            String name = null;
+            if (c == '*') {
+                pos++;
+            } else {
+                int end = nameEnd(path, pos);
+                if (end == pos) {
+                    return null;
+                }
+                name = path.substring(pos, end);
+                pos = end;
+            }
+
+            String attributeName = null;
+            String attributeValue = null;
+            if ((pos < len) && (path.charAt(pos) == '[')) {
+                pos++;
+                if ((pos >= len) || (path.charAt(pos) != '@')) {
+                    return null;
+                }
+                int end = nameEnd(path, pos + 1);
+                if (end == pos + 1) {
+                    return null;
+                }
+                attributeName = path.substring(pos + 1, end);
+                pos = end;
+                if ((pos + 1 >= len) || (path.charAt(pos) != '=')) {
+                    return null;
+                }
+                pos++;
+                char quote = path.charAt(pos);
+                if ((quote != '\'') && (quote != '"')) {
+                    return null;
+                }
+                int close = path.indexOf(quote, pos + 1);
+                if (close == -1) {
+                    return null;
+                }
+                attributeValue = path.substring(pos + 1, close);
+                pos = close + 1;
+                if ((pos >= len) || (path.charAt(pos) != ']')) {
+                    return null;
+                }
+                pos++;
+            }
+            stepList.add(new Step(name, attributeName, attributeValue));
+
+            if (pos == len) {
+                break;
+            }
+            if (path.charAt(pos) != '/') {
+                return null;
+            }
+            pos++;
+        }
+
+        if (absolute && stepList.isEmpty()) {
+            return null;
+        }
+        return new XMLSimplePath(path, absolute, stepList.toArray(new Step[stepList.size()]), terminal, terminalAttribute);
+    }
+
+    /**
+     * Determine if an element satisfies a step.
+     *
+     * @param step    Step to check.
+     * @param element Candidate element.
+     * @return True if the element matches.
+     */
+    static boolean matches(Step step, Element element) {
+        String localName = element.getLocalName();
+        if (!step.matchesName(element.getNamespaceURI(), (localName == null) ? element.getNodeName() : localName)) {
+            return false;
+        }
+        if (step.attributeName == null) {
+            return true;
+        }
+        Attr attr = element.getAttributeNode(step.attributeName);
+        return (attr != null) && step.attributeValue.equals(attr.getValue());
+    }
+
+    /**
+     * Get the first node selected by the terminal of this path from an element
+     * that matched all the steps.
+     *
+     * @param node Element, or the context node if the path has no steps.
+     * @return First selected node, or null if there is none.
+     */
+    Node firstTerminal(Node node) {
+        switch (terminal) {
+            case ELEMENT:
+                return node;
+            case TEXT:
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    short type = child.getNodeType();
+                    if ((type == Node.TEXT_NODE) || (type == Node.CDATA_SECTION_NODE)) {
+                        return child;
+                    }
+                }
+                return null;
+            case ATTRIBUTE:
+                return (node.getNodeType() == Node.ELEMENT_NODE) ? ((Element) node).getAttributeNode(terminalAttribute) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Add the nodes selected by the terminal of this path from an element that matched all the steps.
+     *
+     * @return True if a node was added.
+     */
+    private boolean addTerminal(Node node, List<Node> result, boolean firstOnly) {
+        boolean found = false;
+        switch (terminal) {
+            case ELEMENT:
+                result.add(node);
+                found = true;
+                break;
+            case TEXT:
+                // as in XPath, adjacent text and CDATA nodes count as a single text node
+                boolean inText = false;
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    short type = child.getNodeType();
+                    boolean isText = (type == Node.TEXT_NODE) || (type == Node.CDATA_SECTION_NODE);
+                    if (isText && !inText) {
+                        result.add(child);
+                        found = true;
+                        if (firstOnly) {
+                            break;
+                        }
+                    }
+                    inText = isText;
+                }
+                break;
+            case ATTRIBUTE:
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    Attr attr = ((Element) node).getAttributeNode(terminalAttribute);
+                    if (attr != null) {
+                        result.add(attr);
+                        found = true;
+                    }
+                }
+                break;
+        }
+        return found;
+    }
+
+    /**
+     * Recursively match the steps starting at the given index against the children of a node.
+     *
+     * @return True if a node was found and only the first one is wanted.
+     */
+    private boolean select(Node node, int step, List<Node> result, boolean firstOnly) {
+        if (step == steps.length) {
+            return addTerminal(node, result, firstOnly) && firstOnly;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if ((child.getNodeType() == Node.ELEMENT_NODE) && matches(steps[step], (Element) child)) {
+                if (select(child, step + 1, result, firstOnly)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walk the DOM to find the nodes selected by this path, in document order.
+     * This gives the same result as evaluating the path with XPath.
+     *
+     * @param context   Context node for relative paths.
+     * @param result    Selected nodes are added to this list.
+     * @param firstOnly If true, stop after the first node is found.
+     */
+    void select(Node context, List<Node> result, boolean firstOnly) {
+        Node start = context;
+        if (absolute && (context.getNodeType() != Node.DOCUMENT_NODE)) {
+            start = context.getOwnerDocument();
+        }
+        // in XPath, attributes do not have children
+        if ((start != null) && (start.getNodeType() != Node.ATTRIBUTE_NODE)) {
+            select(start, 0, result, firstOnly);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+}
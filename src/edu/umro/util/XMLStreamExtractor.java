@@ -0,0 +1,331 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Pull a set of values out of an XML document in a single streaming pass,
+ * without building a DOM.  This is intended for callers that only need a
+ * few values from a large document such as a <code>UMROEnvelope</code>.
+ * <p>
+ * Paths must be simple paths: child steps made of element names or
+ * <code>*</code>, each with an optional <code>[@name='value']</code>
+ * predicate, optionally ending in <code>text()</code> or
+ * <code>@attribute</code>.  Relative paths are evaluated with the root
+ * element as the context node, so they select the same nodes as
+ * <code>XML.getValue(document.getDocumentElement(), path)</code>.  Paths
+ * starting with <code>/</code> are evaluated from the document.
+ * <p>
+ * The value of a path is taken from the first match in document order.  For
+ * <code>text()</code> it is the first text child as <code>XML.getValue</code>
+ * gives it, where a CDATA section and the text next to it are separate nodes,
+ * although adjacent CDATA sections are joined because the parser may report
+ * one section in pieces.  For an attribute it is the attribute value.  For a
+ * path ending in an element it is all of the text contained by that element,
+ * where <code>XML.getValue</code> would give null.  Reading stops as soon as
+ * every path has a value.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class XMLStreamExtractor {
+
+    /**
+     * Paths to be extracted, in the order given by the caller.
+     */
+    private final XMLSimplePath[] pathList;
+
+    /**
+     * Property of the JDK's parser that makes it report CDATA sections as such.
+     */
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /**
+     * Each thread gets its own factory because factories are not guaranteed
+     * to be thread safe.
+     */
+    private static final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+            // the JDK's parser reports CDATA sections as characters unless asked not to
+            if (factory.isPropertySupported(REPORT_CDATA)) {
+                factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+            }
+            return factory;
+        }
+    };
+
+    /**
+     * Accumulates the value for one path while the matching element is being read.
+     */
+    private static class Collector {
+        final int path;
+        final int depth;
+        final boolean textOnly;
+        final StringBuilder text = new StringBuilder();
+        boolean started = false;
+
+        /**
+         * True if the text being collected for <code>text()</code> is a CDATA section.
+         */
+        boolean cdata = false;
+
+        Collector(int path, int depth, boolean textOnly) {
+            this.path = path;
+            this.depth = depth;
+            this.textOnly = textOnly;
+        }
+    }
+
+    /**
+     * Construct an extractor for the given paths.
+     *
+     * @param paths Simple paths whose values are wanted.
+     * @throws UMROException If a path is not a simple path.
+     */
+    public XMLStreamExtractor(Collection<String> paths) throws UMROException {
+        pathList = new XMLSimplePath[paths.size()];
+        int p = 0;
+        for (String path : paths) {
+            XMLSimplePath simplePath = XMLSimplePath.parse(path);
+            if (simplePath == null) {
+                throw new UMROException("XMLStreamExtractor does not support path: " + path);
+            }
+            pathList[p++] = simplePath;
+        }
+    }
+
+    /**
+     * Extract values from a byte stream.  The encoding is determined from
+     * the document.  The stream is not closed.
+     *
+     * @param inputStream XML document.
+     * @return Map of path to value, containing only paths that were matched.
+     * @throws UMROException If the document could not be read.
+     */
+    public Map<String, String> extract(InputStream inputStream) throws UMROException {
+        try {
+            return extract(inputFactory.get().createXMLStreamReader(inputStream));
+        } catch (XMLStreamException ex) {
+            throw new UMROException("XMLStreamException while extracting values: " + ex);
+        }
+    }
+
+    /**
+     * Extract values from a character stream.  The reader is not closed.
+     *
+     * @param reader XML document.
+     * @return Map of path to value, containing only paths that were matched.
+     * @throws UMROException If the document could not be read.
+     */
+    public Map<String, String> extract(Reader reader) throws UMROException {
+        try {
+            return extract(inputFactory.get().createXMLStreamReader(reader));
+        } catch (XMLStreamException ex) {
+            throw new UMROException("XMLStreamException while extracting values: " + ex);
+        }
+    }
+
+    /**
+     * Get the value of an attribute that is not in a namespace.
+     *
+     * @param reader Positioned at a start element.
+     * @param name   Name of attribute.
+     * @return Value of attribute, or null if the element does not have it.
+     */
+    private static String getAttribute(XMLStreamReader reader, String name) {
+        for (int a = 0; a < reader.getAttributeCount(); a++) {
+            String namespace = reader.getAttributeNamespace(a);
+            if (((namespace == null) || (namespace.length() == 0)) && name.equals(reader.getAttributeLocalName(a))) {
+                return reader.getAttributeValue(a);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine if the element the reader is positioned at matches a step.
+     */
+    private static boolean matches(XMLSimplePath.Step step, XMLStreamReader reader) {
+        if (!step.matchesName(reader.getNamespaceURI(), reader.getLocalName())) {
+            return false;
+        }
+        return (step.attributeName == null) || step.attributeValue.equals(getAttribute(reader, step.attributeName));
+    }
+
+    /**
+     * Number of element steps between the document and the context node of a path.
+     */
+    private static int base(XMLSimplePath path) {
+        return path.absolute ? 0 : 1;
+    }
+
+    /**
+     * Read events until every path has been matched or the document ends.
+     *
+     * @param reader Stream positioned at the start of the document.
+     * @return Map of path to value.
+     * @throws XMLStreamException If the document could not be read.
+     */
+    private Map<String, String> extract(XMLStreamReader reader) throws XMLStreamException {
+        String[] valueList = new String[pathList.length];
+        int remaining = pathList.length;
+
+        // alive.get(d) holds the paths whose steps match all elements from the context down to depth d
+        ArrayList<BitSet> alive = new ArrayList<BitSet>();
+        BitSet absolute = new BitSet(pathList.length);
+        for (int p = 0; p < pathList.length; p++) {
+            if (pathList[p].absolute) {
+                absolute.set(p);
+            }
+        }
+        alive.add(absolute);
+
+        ArrayList<Collector> collectorList = new ArrayList<Collector>();
+        int depth = 0;
+
+        try {
+            while ((remaining > 0) && reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        remaining -= finishText(collectorList, depth, valueList, XMLStreamConstants.START_ELEMENT);
+                        depth++;
+                        if (alive.size() <= depth) {
+                            alive.add(new BitSet(pathList.length));
+                        }
+                        BitSet parent = alive.get(depth - 1);
+                        BitSet current = alive.get(depth);
+                        current.clear();
+
+                        for (int p = 0; p < pathList.length; p++) {
+                            if (valueList[p] != null) {
+                                continue;
+                            }
+                            XMLSimplePath path = pathList[p];
+                            int step = depth - base(path) - 1;
+                            if (step == -1) {
+                                current.set(p);
+                            } else if (parent.get(p) && (step < path.steps.length) && matches(path.steps[step], reader)) {
+                                current.set(p);
+                            }
+                            if (current.get(p) && (step == path.steps.length - 1)) {
+                                switch (path.terminal) {
+                                    case ATTRIBUTE:
+                                        valueList[p] = getAttribute(reader, path.terminalAttribute);
+                                        if (valueList[p] != null) {
+                                            remaining--;
+                                        }
+                                        break;
+                                    case TEXT:
+                                        collectorList.add(new Collector(p, depth, true));
+                                        break;
+                                    case ELEMENT:
+                                        collectorList.add(new Collector(p, depth, false));
+                                        break;
+                                }
+                            }
+                        }
+                        break;
+                    }
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE: {
+                        int event = reader.getEventType();
+                        remaining -= finishText(collectorList, depth, valueList, event);
+                        for (Collector collector : collectorList) {
+                            if ((!collector.textOnly) || (collector.depth == depth)) {
+                                collector.text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                                collector.started = true;
+                                collector.cdata = (event == XMLStreamConstants.CDATA);
+                            }
+                        }
+                        break;
+                    }
+
+                    case XMLStreamConstants.COMMENT:
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        remaining -= finishText(collectorList, depth, valueList, reader.getEventType());
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT: {
+                        Iterator<Collector> iterator = collectorList.iterator();
+                        while (iterator.hasNext()) {
+                            Collector collector = iterator.next();
+                            if (collector.depth == depth) {
+                                if ((collector.started || !collector.textOnly) && (valueList[collector.path] == null)) {
+                                    valueList[collector.path] = collector.text.toString();
+                                    remaining--;
+                                }
+                                iterator.remove();
+                            }
+                        }
+                        depth--;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        LinkedHashMap<String, String> valueMap = new LinkedHashMap<String, String>();
+        for (int p = 0; p < pathList.length; p++) {
+            if (valueList[p] != null) {
+                valueMap.put(pathList[p].text, valueList[p]);
+            }
+        }
+        return valueMap;
+    }
+
+    /**
+     * End the text node that is a child of the element at the given depth
+     * unless the next event continues it, and record the values of any
+     * <code>text()</code> paths that were waiting on it.  Character data
+     * continues character data and CDATA continues CDATA, but in a DOM a
+     * CDATA section is a node of its own.
+     *
+     * @param event Next event.
+     * @return The number of paths that got a value.
+     */
+    private static int finishText(ArrayList<Collector> collectorList, int depth, String[] valueList, int event) {
+        boolean characters = (event == XMLStreamConstants.CHARACTERS) || (event == XMLStreamConstants.SPACE);
+        boolean cdata = (event == XMLStreamConstants.CDATA);
+        int found = 0;
+        Iterator<Collector> iterator = collectorList.iterator();
+        while (iterator.hasNext()) {
+            Collector collector = iterator.next();
+            boolean continued = collector.cdata ? cdata : characters;
+            if (collector.textOnly && collector.started && (collector.depth == depth) && !continued) {
+                if (valueList[collector.path] == null) {
+                    valueList[collector.path] = collector.text.toString();
+                    found++;
+                }
+                iterator.remove();
+            }
+        }
+        return found;
+    }
+
+}
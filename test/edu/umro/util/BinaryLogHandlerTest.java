@@ -0,0 +1,162 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+/**
+ * Check that records written by <code>BinaryLogHandler</code> are read back
+ * unchanged by <code>BinaryLogDecoder</code>.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class BinaryLogHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LogRecord record(Level level, String message, String className, String methodName, Object... parameterList) {
+        LogRecord record = new LogRecord(level, message);
+        record.setSourceClassName(className);
+        record.setSourceMethodName(methodName);
+        record.setParameters((parameterList.length == 0) ? null : parameterList);
+        return record;
+    }
+
+    private static List<LogRecord> decode(File file) throws IOException {
+        ArrayList<LogRecord> recordList = new ArrayList<LogRecord>();
+        BinaryLogDecoder decoder = new BinaryLogDecoder(new FileInputStream(file));
+        try {
+            LogRecord record;
+            while ((record = decoder.read()) != null) {
+                recordList.add(record);
+            }
+        } finally {
+            decoder.close();
+        }
+        return recordList;
+    }
+
+    private static void assertSame(LogRecord expected, LogRecord actual) {
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.getSourceClassName(), actual.getSourceClassName());
+        assertEquals(expected.getSourceMethodName(), actual.getSourceMethodName());
+        assertEquals(expected.getSequenceNumber(), actual.getSequenceNumber());
+        assertEquals(expected.getThreadID(), actual.getThreadID());
+        assertEquals(BinaryLogFormat.getNanos(expected), BinaryLogFormat.getNanos(actual));
+        assertEquals(expected.getMillis(), actual.getMillis());
+        assertArrayEquals(expected.getParameters(), actual.getParameters());
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        File file = new File(folder.getRoot(), "test.binlog");
+        ArrayList<LogRecord> recordList = new ArrayList<LogRecord>();
+        recordList.add(record(Level.INFO, "Started {0}", "edu.umro.Service", "main", "service"));
+        // a repeated template and source are written as references
+        recordList.add(record(Level.INFO, "Started {0}", "edu.umro.Service", "main", "again"));
+        recordList.add(record(Level.WARNING, "Values {0} {1} {2} {3} {4} {5} {6}", "edu.umro.Service", "check",
+                Integer.MIN_VALUE, Long.MAX_VALUE, -1.5f, Math.PI, Boolean.TRUE, Boolean.FALSE, null));
+        recordList.add(record(Level.FINE, "caf\u00e9 \u65e5\u672c \ud83d\ude00 \"quoted\"\n\ttabbed", null, null));
+        recordList.add(record(Level.parse("850"), null, "edu.umro.Other", null));
+        recordList.add(record(Level.SEVERE, "", null, "method"));
+        LogRecord old = record(Level.INFO, "Long ago", null, null);
+        old.setMillis(0);
+        recordList.add(old);
+        LogRecord thread = record(Level.INFO, "Other thread", null, null);
+        thread.setThreadID(-7);
+        recordList.add(thread);
+
+        BinaryLogHandler handler = new BinaryLogHandler(file.getPath(), 0, 1);
+        for (LogRecord record : recordList) {
+            handler.publish(record);
+        }
+        handler.close();
+
+        List<LogRecord> decodedList = decode(file);
+        assertEquals(recordList.size(), decodedList.size());
+        for (int r = 0; r < recordList.size(); r++) {
+            assertSame(recordList.get(r), decodedList.get(r));
+        }
+    }
+
+    @Test
+    public void parametersOfOtherTypesAreWrittenAsText() throws IOException {
+        File file = new File(folder.getRoot(), "test.binlog");
+        BinaryLogHandler handler = new BinaryLogHandler(file.getPath(), 0, 1);
+        handler.publish(record(Level.INFO, "{0} {1} {2}", null, null, (short) 3, (byte) 4, new StringBuilder("text")));
+        handler.close();
+
+        Object[] parameterList = decode(file).get(0).getParameters();
+        assertEquals(3, parameterList[0]);
+        assertEquals(4, parameterList[1]);
+        assertEquals("text", parameterList[2]);
+    }
+
+    @Test
+    public void thrownIsKeptAsText() throws IOException {
+        File file = new File(folder.getRoot(), "test.binlog");
+        LogRecord record = record(Level.SEVERE, "Failed", null, null);
+        record.setThrown(new IllegalStateException("broken \u00e9"));
+        BinaryLogHandler handler = new BinaryLogHandler(file.getPath(), 0, 1);
+        handler.publish(record);
+        handler.close();
+
+        StringBuilder expected = new StringBuilder();
+        LogFormatter.appendThrowable(record.getThrown(), expected);
+        Throwable thrown = decode(file).get(0).getThrown();
+        assertNotNull(thrown);
+        assertEquals(expected.toString(), thrown.toString());
+    }
+
+    @Test
+    public void eachRolledFileCanBeReadOnItsOwn() throws IOException {
+        File file = new File(folder.getRoot(), "test.binlog");
+        BinaryLogHandler handler = new BinaryLogHandler(file.getPath(), 4096, 50);
+        ArrayList<LogRecord> recordList = new ArrayList<LogRecord>();
+        for (int r = 0; r < 2000; r++) {
+            LogRecord record = record(Level.INFO, "Record {0} from site " + (r % 7), "edu.umro.Site" + (r % 5), "run", r);
+            recordList.add(record);
+            handler.publish(record);
+        }
+        handler.close();
+
+        // rolled files are numbered from newest to oldest
+        ArrayList<LogRecord> decodedList = new ArrayList<LogRecord>();
+        for (int n = 49; n > 0; n--) {
+            File rolled = new File(file.getPath() + "." + n);
+            if (rolled.exists()) {
+                decodedList.addAll(decode(rolled));
+            }
+        }
+        decodedList.addAll(decode(file));
+        assertTrue(new File(file.getPath() + ".1").exists());
+        assertEquals(recordList.size(), decodedList.size());
+        for (int r = 0; r < recordList.size(); r++) {
+            assertSame(recordList.get(r), decodedList.get(r));
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.junit.*;
+
+/**
+ * Check that <code>JsonLogFormatter</code> writes valid JSON that reads back
+ * as the values of the record.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class JsonLogFormatterTest {
+
+    private final JsonLogFormatter formatter = new JsonLogFormatter();
+
+    /**
+     * Parse a JSON object whose values are strings, integers or null.
+     */
+    private static Map<String, Object> parse(String json) {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+        int[] p = {0};
+        expect(json, p, '{');
+        while (true) {
+            String name = parseString(json, p);
+            expect(json, p, ':');
+            Object value;
+            char ch = json.charAt(p[0]);
+            if (ch == '"') {
+                value = parseString(json, p);
+            } else if (json.startsWith("null", p[0])) {
+                value = null;
+                p[0] += 4;
+            } else {
+                int start = p[0];
+                while ((p[0] < json.length()) && ("-0123456789".indexOf(json.charAt(p[0])) >= 0)) {
+                    p[0]++;
+                }
+                value = Long.parseLong(json.substring(start, p[0]));
+            }
+            assertFalse("duplicate field " + name, map.containsKey(name));
+            map.put(name, value);
+            if (json.charAt(p[0]) == '}') {
+                assertEquals("text after the object", p[0] + 1, json.length());
+                return map;
+            }
+            expect(json, p, ',');
+        }
+    }
+
+    private static void expect(String json, int[] p, char ch) {
+        assertEquals("at " + p[0] + " of " + json, ch, json.charAt(p[0]));
+        p[0]++;
+    }
+
+    private static String parseString(String json, int[] p) {
+        expect(json, p, '"');
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            char ch = json.charAt(p[0]++);
+            if (ch == '"') {
+                return text.toString();
+            }
+            if (ch < 0x20) {
+                fail("unescaped control character in " + json);
+            }
+            if (ch != '\\') {
+                text.append(ch);
+                continue;
+            }
+            ch = json.charAt(p[0]++);
+            switch (ch) {
+                case '"':
+                case '\\':
+                case '/':
+                    text.append(ch);
+                    break;
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    text.append((char) Integer.parseInt(json.substring(p[0], p[0] + 4), 16));
+                    p[0] += 4;
+                    break;
+                default:
+                    fail("bad escape \\" + ch + " in " + json);
+            }
+        }
+    }
+
+    /**
+     * Format a record both ways, check that they agree and that the line is
+     * valid UTF-8, and parse it.
+     */
+    private Map<String, Object> formatAndParse(LogRecord record) throws IOException {
+        String line = formatter.format(record);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        formatter.write(record, out);
+        byte[] bytes = out.toByteArray();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+        assertEquals(line, decoder.decode(java.nio.ByteBuffer.wrap(bytes)).toString());
+        assertTrue(line.endsWith("\n"));
+        assertEquals("one line per record", line.length() - 1, line.indexOf('\n'));
+        return parse(line.substring(0, line.length() - 1));
+    }
+
+    @Test
+    public void everyCharacterRoundTrips() throws IOException {
+        StringBuilder message = new StringBuilder();
+        for (char ch = 0; ch < 0x800; ch++) {
+            message.append(ch);
+        }
+        message.append("\"\\/\u2028\u2029\uffff\ufeff \ud83d\ude00 \udbff\udfff end");
+        LogRecord record = new LogRecord(Level.INFO, message.toString());
+        record.setLoggerName("edu.umro.\"quoted\"\\logger");
+        record.setSourceClassName("edu.umro.Class\t1");
+        record.setSourceMethodName("method\n2");
+
+        Map<String, Object> map = formatAndParse(record);
+        assertEquals(message.toString(), map.get("message"));
+        assertEquals(record.getLoggerName(), map.get("logger"));
+        assertEquals(record.getSourceClassName(), map.get("class"));
+        assertEquals(record.getSourceMethodName(), map.get("method"));
+        assertEquals("INFO", map.get("level"));
+        assertEquals(record.getSequenceNumber(), map.get("seq"));
+        assertEquals((long) record.getThreadID(), map.get("thread"));
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplaced() throws IOException {
+        LogRecord record = new LogRecord(Level.INFO, "a\ud800b\udc00c\ud83d");
+        record.setSourceClassName(null);
+        record.setSourceMethodName(null);
+        assertEquals("a?b?c?", formatAndParse(record).get("message"));
+    }
+
+    @Test
+    public void parametersAreApplied() throws IOException {
+        LogRecord record = new LogRecord(Level.WARNING, "Value {0} of \"{1}\"");
+        record.setParameters(new Object[]{42, "line\nbreak"});
+        assertEquals("Value 42 of \"line\nbreak\"", formatAndParse(record).get("message"));
+    }
+
+    @Test
+    public void nullFieldsAreLeftOut() throws IOException {
+        LogRecord record = new LogRecord(Level.FINE, null);
+        record.setSourceClassName(null);
+        record.setSourceMethodName(null);
+        Map<String, Object> map = formatAndParse(record);
+        assertTrue(map.containsKey("message"));
+        assertNull(map.get("message"));
+        assertFalse(map.containsKey("logger"));
+        assertFalse(map.containsKey("class"));
+        assertFalse(map.containsKey("method"));
+        assertFalse(map.containsKey("thrown"));
+    }
+
+    @Test
+    public void thrownIsTheLogFormatterText() throws IOException {
+        LogRecord record = new LogRecord(Level.SEVERE, "Failed");
+        record.setThrown(new IOException("disk \"full\"\n\tretry"));
+        StringBuilder expected = new StringBuilder();
+        LogFormatter.appendThrowable(record.getThrown(), expected);
+        assertEquals(expected.toString(), formatAndParse(record).get("thrown"));
+    }
+
+    @Test
+    public void timeHasMillisecondsAndZone() throws IOException {
+        LogRecord record = new LogRecord(Level.INFO, "time");
+        record.setMillis(1338559323007L);
+        String time = (String) formatAndParse(record).get("time");
+        assertTrue(time, time.matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.007([+-]\\d{2}:\\d{2}|Z)"));
+    }
+
+    @Test
+    public void longRecordsDoNotKeepLargeBuffers() throws IOException {
+        char[] big = new char[100 * 1000];
+        Arrays.fill(big, '\u00e9');
+        String message = new String(big);
+        assertEquals(message, formatAndParse(new LogRecord(Level.INFO, message)).get("message"));
+        assertEquals("short", formatAndParse(new LogRecord(Level.INFO, "short")).get("message"));
+    }
+
+}
@@ -0,0 +1,164 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Formatter;
+import java.util.logging.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+/**
+ * Check that a <code>LogFileHandler</code> rolling over by size while many
+ * threads write to it keeps every record, whole and exactly once.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class LogFileHandlerRollTest {
+
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 5000;
+    private static final long ROLL_SIZE = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes each record as its message on a line of its own.
+     */
+    private static class LineFormatter extends Formatter {
+        @Override
+        public String format(LogRecord record) {
+            return record.getMessage() + "\n";
+        }
+    }
+
+    private File logFile;
+
+    private LogFileHandler open() throws IOException {
+        logFile = new File(folder.getRoot(), "roll.log");
+        LogFileHandler handler = new LogFileHandler(logFile.getPath(), 0, 1, false);
+        handler.setFormatter(new LineFormatter());
+        handler.enableRolling(LogFileHandler.RollInterval.NONE, ROLL_SIZE, false, 0, 0);
+        return handler;
+    }
+
+    private static void publishConcurrently(final Handler handler) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        ArrayList<Future<?>> futureList = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futureList.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int r = 0; r < RECORDS_PER_THREAD; r++) {
+                        handler.publish(new LogRecord(Level.INFO, "thread " + thread + " record " + r + " padding to make the line longer"));
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futureList) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Read every log file, checking that each line is a whole record, that
+     * each record appears once, and that each thread's records are in order
+     * within a file.
+     *
+     * @return Number of rolled files.
+     */
+    private int checkFiles() throws IOException {
+        final String prefix = logFile.getName() + ".";
+        File[] rolledList = folder.getRoot().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(prefix) && !file.getName().endsWith(".lck");
+            }
+        });
+        ArrayList<File> fileList = new ArrayList<File>(Arrays.asList(rolledList));
+        fileList.add(logFile);
+
+        BitSet[] seen = new BitSet[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            seen[t] = new BitSet(RECORDS_PER_THREAD);
+        }
+        for (File file : fileList) {
+            if (file != logFile) {
+                // the size is checked before each record is written
+                assertTrue(file + " rolled early at " + file.length(), file.length() >= ROLL_SIZE);
+                assertTrue(file + " rolled late at " + file.length(), file.length() < ROLL_SIZE + 100);
+            }
+            int[] last = new int[THREADS];
+            Arrays.fill(last, -1);
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] word = line.split(" ");
+                    assertTrue("partial line in " + file + ": " + line, (word.length == 10) && line.endsWith("longer"));
+                    int thread = Integer.parseInt(word[1]);
+                    int record = Integer.parseInt(word[3]);
+                    assertFalse("duplicate " + line, seen[thread].get(record));
+                    seen[thread].set(record);
+                    assertTrue("out of order in " + file + ": " + line, record > last[thread]);
+                    last[thread] = record;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals("records lost from thread " + t, RECORDS_PER_THREAD, seen[t].cardinality());
+        }
+        return rolledList.length;
+    }
+
+    @Test
+    public void synchronousRollingKeepsEveryRecord() throws Exception {
+        LogFileHandler handler = open();
+        publishConcurrently(handler);
+        handler.close();
+        int rolled = checkFiles();
+        assertTrue(rolled > 10);
+        assertEquals(rolled, handler.getRollCount());
+    }
+
+    @Test
+    public void asynchronousRollingKeepsEveryRecord() throws Exception {
+        LogFileHandler handler = open();
+        handler.enableAsync(256, LogFileHandler.OverflowPolicy.BLOCK);
+        publishConcurrently(handler);
+        handler.close();
+        int rolled = checkFiles();
+        assertTrue(rolled > 10);
+        assertEquals(rolled, handler.getRollCount());
+        assertEquals(0, handler.getDroppedCount());
+    }
+
+}
@@ -0,0 +1,120 @@
+package edu.umro.util;
+
+/*
+ * Copyright 2012 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.junit.*;
+
+/**
+ * Check that <code>LogRingBuffer</code> hands every record from several
+ * producers to the consumer exactly once and in each producer's order.
+ *
+ * @author Jim Irrer  irrer@umich.edu
+ */
+public class LogRingBufferTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int RECORDS_PER_PRODUCER = 200 * 1000;
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new LogRingBuffer(1).capacity());
+        assertEquals(8, new LogRingBuffer(8).capacity());
+        assertEquals(1024, new LogRingBuffer(1000).capacity());
+    }
+
+    @Test
+    public void offerFailsWhenFullAndPollWhenEmpty() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        assertNull(buffer.poll());
+        LogRecord[] recordList = new LogRecord[4];
+        for (int r = 0; r < recordList.length; r++) {
+            recordList[r] = new LogRecord(Level.INFO, "record " + r);
+            assertTrue(buffer.offer(recordList[r]));
+        }
+        assertFalse(buffer.offer(new LogRecord(Level.INFO, "extra")));
+        assertEquals(4, buffer.size());
+        // wrap around several times
+        for (int r = 0; r < 20; r++) {
+            assertSame(recordList[r % 4], buffer.poll());
+            assertTrue(buffer.offer(recordList[r % 4]));
+        }
+        for (int r = 0; r < 4; r++) {
+            assertSame(recordList[r], buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void concurrentProducersLoseAndDuplicateNothing() throws Exception {
+        // small enough that producers often find it full
+        final LogRingBuffer buffer = new LogRingBuffer(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+        ArrayList<Future<?>> futureList = new ArrayList<Future<?>>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            futureList.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int r = 0; r < RECORDS_PER_PRODUCER; r++) {
+                        LogRecord record = new LogRecord(Level.INFO, null);
+                        record.setThreadID(producer);
+                        record.setSequenceNumber(r);
+                        while (!buffer.offer(record)) {
+                            Thread.yield();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        long[] next = new long[PRODUCERS];
+        int received = 0;
+        start.countDown();
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        while (received < PRODUCERS * RECORDS_PER_PRODUCER) {
+            LogRecord record = buffer.poll();
+            if (record == null) {
+                assertTrue("timed out after " + received + " records", System.currentTimeMillis() < deadline);
+                Thread.yield();
+                continue;
+            }
+            int producer = record.getThreadID();
+            assertEquals("record out of order from producer " + producer, next[producer], record.getSequenceNumber());
+            next[producer]++;
+            received++;
+        }
+        for (Future<?> future : futureList) {
+            future.get();
+        }
+        executor.shutdown();
+        assertNull(buffer.poll());
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(RECORDS_PER_PRODUCER, next[p]);
+        }
+    }
+
+}